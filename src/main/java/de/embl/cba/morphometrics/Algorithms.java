@@ -89,23 +89,9 @@ public class Algorithms
 	public static < T extends RealType< T > & NativeType< T > >
 	Point findMaximumLocation( RandomAccessibleInterval< T > rai, double[] calibration )
 	{
-		Cursor< T > cursor = Views.iterable( rai ).localizingCursor();
-
-		double maxValue = Double.MIN_VALUE;
-
-		long[] maxLoc = new long[ cursor.numDimensions() ];
-		cursor.localize( maxLoc );
-
-		while ( cursor.hasNext() )
-		{
-			final double value = cursor.next().getRealDouble();
-			if ( value > maxValue )
-			{
-				maxValue = value;
-				cursor.localize( maxLoc );
-			}
-		}
+		long[] maxLoc = Kernels.findMaximumPosition( rai );
 
+		if ( maxLoc == null ) maxLoc = Intervals.minAsLongArray( rai );
 
 		for ( int d = 0; d < rai.numDimensions(); ++d )
 		{
@@ -121,20 +107,7 @@ public class Algorithms
 	public static < T extends RealType< T > & NativeType< T > >
 	double getMaximumValue( RandomAccessibleInterval< T > rai )
 	{
-		Cursor< T > cursor = Views.iterable( rai ).localizingCursor();
-
-		double maxValue = Double.MIN_VALUE;
-
-		while ( cursor.hasNext() )
-		{
-			final double value = cursor.next().getRealDouble();
-			if ( value > maxValue )
-			{
-				maxValue = value;
-			}
-		}
-
-		return maxValue;
+		return Kernels.getMaximumValue( rai );
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
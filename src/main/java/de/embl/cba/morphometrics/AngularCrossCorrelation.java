@@ -0,0 +1,87 @@
+package de.embl.cba.morphometrics;
+
+import java.util.List;
+
+/**
+ * Circular cross-correlation of angular profiles with one reference profile, computed by FFT.
+ *
+ * The Fourier transform of the reference is computed once, such that the same instance
+ * can be used to find the shifts of the profiles of many embryos.
+ */
+public class AngularCrossCorrelation
+{
+	private final int numAngles;
+	private final double[] referenceReal;
+	private final double[] referenceImaginary;
+
+	/**
+	 * @param referenceProfile angular profile, bin i centred at 360 * i / length degrees, length a power of two
+	 */
+	public AngularCrossCorrelation( double[] referenceProfile )
+	{
+		numAngles = referenceProfile.length;
+
+		if ( ! FFT.isPowerOfTwo( numAngles ) )
+		{
+			throw new IllegalArgumentException( "Number of angles must be a power of two: " + numAngles );
+		}
+
+		referenceReal = referenceProfile.clone();
+		referenceImaginary = new double[ numAngles ];
+		FFT.transform( referenceReal, referenceImaginary, false );
+	}
+
+	/**
+	 * @param profile angular profile, with the same binning as the reference
+	 * @return the angle in degrees, in ( -180, 180 ], by which the profile is rotated with respect to the reference,
+	 * i.e. the angle at which the cross-correlation is maximal, with sub-bin accuracy
+	 */
+	public double computeShift( double[] profile )
+	{
+		if ( profile.length != numAngles )
+		{
+			throw new IllegalArgumentException( "Profile has " + profile.length + " angles instead of " + numAngles );
+		}
+
+		final double[] real = profile.clone();
+		final double[] imaginary = new double[ numAngles ];
+		FFT.transform( real, imaginary, false );
+
+		// multiplication with the complex conjugate of the reference
+		for ( int k = 0; k < numAngles; ++k )
+		{
+			final double productReal = real[ k ] * referenceReal[ k ] + imaginary[ k ] * referenceImaginary[ k ];
+			final double productImaginary = imaginary[ k ] * referenceReal[ k ] - real[ k ] * referenceImaginary[ k ];
+			real[ k ] = productReal;
+			imaginary[ k ] = productImaginary;
+		}
+
+		FFT.transform( real, imaginary, true );
+
+		int maximum = 0;
+		for ( int k = 1; k < numAngles; ++k )
+		{
+			if ( real[ k ] > real[ maximum ] ) maximum = k;
+		}
+
+		// parabola through the maximum and its circular neighbours
+		final double previous = real[ ( maximum - 1 + numAngles ) % numAngles ];
+		final double next = real[ ( maximum + 1 ) % numAngles ];
+		final double curvature = previous - 2 * real[ maximum ] + next;
+		final double offset = curvature < 0 ? 0.5 * ( previous - next ) / curvature : 0;
+
+		double shift = ( maximum + offset ) * 360.0 / numAngles;
+		if ( shift > 180.0 ) shift -= 360.0;
+
+		return shift;
+	}
+
+	/**
+	 * @param profiles angular profiles of several embryos
+	 * @return the shift of each profile, computed in parallel
+	 */
+	public double[] computeShifts( List< double[] > profiles )
+	{
+		return profiles.parallelStream().mapToDouble( this::computeShift ).toArray();
+	}
+}
@@ -0,0 +1,137 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.logic.BitType;
+
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.XYZ;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Angular profiles around the x-axis of a transformed mask.
+ *
+ * The mask is resampled once, with nearest neighbour interpolation, on a cylindrical grid ( x, theta, r ) of
+ * the transformed coordinate system, and the samples are summed over x and r, weighted by r, such that each
+ * bin of the profile is proportional to the foreground area of the respective angular sector.
+ *
+ * The angle theta is measured around the x-axis, starting at the negative z-axis and increasing towards the positive y-axis,
+ * i.e. the position at angle theta and radius r is ( y, z ) = ( r sin theta, - r cos theta ),
+ * as for the angles of the slice centroids.
+ */
+public class AngularProfiles
+{
+	/**
+	 * @param mask
+	 * @param transform from mask voxel coordinates to the coordinate system in which the profile is measured
+	 * @param calibration voxel size of the transformed coordinate system
+	 * @param numAngles number of angular bins, must be a power of two for the cross-correlation
+	 * @param minDistanceToCenter only x-slices further than this from x = 0 are sampled
+	 * @param maxDistanceToCenter only x-slices closer than this to x = 0 are sampled
+	 * @param maxRadius radius of the sampled cylinder
+	 * @return the angular profile, bin i being centred at the angle 360 * i / numAngles degrees
+	 */
+	public static double[] computeAngularProfile(
+			RandomAccessibleInterval< BitType > mask,
+			AffineTransform3D transform,
+			double calibration,
+			int numAngles,
+			double minDistanceToCenter,
+			double maxDistanceToCenter,
+			double maxRadius )
+	{
+		final AffineTransform3D inverse = transform.inverse();
+
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+		final long[] bits = FlatArrays.getPackedBits( mask );
+		final long[] min = new long[]{ mask.min( X ), mask.min( Y ), mask.min( Z ) };
+
+		final int maxSlice = ( int ) Math.floor( maxDistanceToCenter / calibration );
+		final int numRadii = ( int ) Math.ceil( maxRadius / calibration );
+
+		final double[] sin = new double[ numAngles ];
+		final double[] cos = new double[ numAngles ];
+
+		for ( int j = 0; j < numAngles; ++j )
+		{
+			final double angle = 2.0 * Math.PI * j / numAngles;
+			sin[ j ] = Math.sin( angle );
+			cos[ j ] = Math.cos( angle );
+		}
+
+		final double[][] sliceProfiles = new double[ 2 * maxSlice + 1 ][];
+
+		IntStream.rangeClosed( - maxSlice, maxSlice ).parallel().forEach( x ->
+		{
+			if ( Math.abs( x * calibration ) <= minDistanceToCenter || Math.abs( x * calibration ) >= maxDistanceToCenter ) return;
+
+			final double[] profile = new double[ numAngles ];
+			final double[] cylindrical = new double[ 3 ];
+			final double[] position = new double[ 3 ];
+
+			for ( int j = 0; j < numAngles; ++j )
+			{
+				for ( int r = 1; r <= numRadii; ++r )
+				{
+					cylindrical[ X ] = x;
+					cylindrical[ Y ] = r * sin[ j ];
+					cylindrical[ Z ] = - r * cos[ j ];
+					inverse.apply( cylindrical, position );
+
+					if ( isForeground( bits, dimensions, min, position ) ) profile[ j ] += r;
+				}
+			}
+
+			sliceProfiles[ x + maxSlice ] = profile;
+		} );
+
+		final double[] profile = new double[ numAngles ];
+
+		for ( double[] sliceProfile : sliceProfiles )
+		{
+			if ( sliceProfile == null ) continue;
+
+			for ( int j = 0; j < numAngles; ++j ) profile[ j ] += sliceProfile[ j ];
+		}
+
+		return profile;
+	}
+
+	/**
+	 * @param numAngles
+	 * @return a profile with all mass at the negative z-axis side, i.e. the roll that the centroid based
+	 * roll angle computation aligns to
+	 */
+	public static double[] createNegativeZReferenceProfile( int numAngles )
+	{
+		final double[] profile = new double[ numAngles ];
+
+		for ( int j = 0; j < numAngles; ++j )
+		{
+			profile[ j ] = Math.max( 0.0, Math.cos( 2.0 * Math.PI * j / numAngles ) );
+		}
+
+		return profile;
+	}
+
+	private static boolean isForeground( long[] bits, int[] dimensions, long[] min, double[] position )
+	{
+		int i = 0;
+		int stride = 1;
+
+		for ( int d : XYZ )
+		{
+			final long coordinate = Math.round( position[ d ] ) - min[ d ];
+
+			if ( coordinate < 0 || coordinate >= dimensions[ d ] ) return false;
+
+			i += coordinate * stride;
+			stride *= dimensions[ d ];
+		}
+
+		return ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) != 0;
+	}
+}
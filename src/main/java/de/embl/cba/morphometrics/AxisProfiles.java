@@ -0,0 +1,174 @@
+package de.embl.cba.morphometrics;
+
+import de.embl.cba.morphometrics.geometry.CentroidsParameters;
+import de.embl.cba.morphometrics.geometry.CoordinatesAndValues;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+import static java.lang.Math.acos;
+
+/**
+ * Profiles along the x-axis of a transformed mask, computed without resampling the mask.
+ *
+ * Each foreground voxel is mapped through the transform and accumulated into the x-slice
+ * that its transformed x-coordinate rounds to. Along each line, the transformed coordinates are offsets
+ * of the transformed line start, such that the transform is applied only once per line.
+ */
+public class AxisProfiles
+{
+	/**
+	 * Sums per x-slice of the transformed mask, indexed by x-coordinate minus minX.
+	 */
+	private static class SliceSums
+	{
+		long minX;
+		long[] numVoxels;
+		double[] sumY;
+		double[] sumZ;
+		double[] sumIntensities;
+	}
+
+	/**
+	 * @param intensities
+	 * @param mask
+	 * @param transform from mask voxel coordinates to the coordinate system in which the profile is measured
+	 * @param calibration
+	 * @return average intensity within the mask of each x-slice of the transformed image
+	 */
+	public static < T extends RealType< T > >
+	CoordinatesAndValues computeAverageIntensitiesAlongX(
+			RandomAccessibleInterval< T > intensities,
+			RandomAccessibleInterval< BitType > mask,
+			AffineTransform3D transform,
+			double calibration )
+	{
+		final SliceSums sliceSums = computeSliceSums( mask, intensities, transform );
+
+		final CoordinatesAndValues coordinatesAndValues = new CoordinatesAndValues();
+
+		for ( int i = 0; i < sliceSums.numVoxels.length; ++i )
+		{
+			coordinatesAndValues.coordinates.add( ( double ) ( sliceSums.minX + i ) * calibration );
+			coordinatesAndValues.values.add( sliceSums.sumIntensities[ i ] / sliceSums.numVoxels[ i ] );
+		}
+
+		return coordinatesAndValues;
+	}
+
+	/**
+	 * @param mask
+	 * @param transform from mask voxel coordinates to the coordinate system in which the profile is measured
+	 * @param calibration
+	 * @param maxDistanceToCenter only slices closer than this to x = 0 are measured
+	 * @return centroid in ( y, z ) of each non-empty x-slice of the transformed mask, with its angle around
+	 * and distance to the x-axis
+	 */
+	public static CentroidsParameters computeCentroidsParametersAlongX(
+			RandomAccessibleInterval< BitType > mask,
+			AffineTransform3D transform,
+			double calibration,
+			double maxDistanceToCenter )
+	{
+		final SliceSums sliceSums = computeSliceSums( mask, null, transform );
+
+		final CentroidsParameters centroidsParameters = new CentroidsParameters();
+
+		final double[] unitVectorInNegativeZDirection = new double[]{ 0, -1 };
+
+		for ( int i = 0; i < sliceSums.numVoxels.length; ++i )
+		{
+			final long coordinate = sliceSums.minX + i;
+
+			if ( Math.abs( coordinate * calibration ) >= maxDistanceToCenter || sliceSums.numVoxels[ i ] == 0 ) continue;
+
+			final double[] centroid = new double[]{
+					sliceSums.sumY[ i ] / sliceSums.numVoxels[ i ],
+					sliceSums.sumZ[ i ] / sliceSums.numVoxels[ i ] };
+
+			final double centroidLength = Utils.vectorLength( centroid );
+
+			// the sign of the y-coordinate determines the direction of rotation
+			final double angle = Math.signum( centroid[ 0 ] ) * 180 / Math.PI * acos( Utils.dotProduct( centroid, unitVectorInNegativeZDirection ) / centroidLength );
+
+			centroidsParameters.distances.add( centroidLength * calibration );
+			centroidsParameters.angles.add( angle );
+			centroidsParameters.axisCoordinates.add( ( double ) coordinate * calibration );
+			centroidsParameters.centroids.add( new RealPoint( coordinate * calibration, centroid[ 0 ] * calibration, centroid[ 1 ] * calibration ) );
+			centroidsParameters.numVoxels.add( ( double ) sliceSums.numVoxels[ i ] );
+		}
+
+		return centroidsParameters;
+	}
+
+	/**
+	 * @param intensities may be null, in which case no intensities are summed
+	 */
+	private static < T extends RealType< T > >
+	SliceSums computeSliceSums( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< T > intensities, AffineTransform3D transform )
+	{
+		final FinalRealInterval bounds = transform.estimateBounds( mask );
+
+		final SliceSums sliceSums = new SliceSums();
+		sliceSums.minX = ( long ) Math.floor( bounds.realMin( X ) );
+		final int numSlices = ( int ) ( ( long ) Math.ceil( bounds.realMax( X ) ) - sliceSums.minX + 1 );
+
+		sliceSums.numVoxels = new long[ numSlices ];
+		sliceSums.sumY = new double[ numSlices ];
+		sliceSums.sumZ = new double[ numSlices ];
+		sliceSums.sumIntensities = new double[ numSlices ];
+
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+		final long[] bits = FlatArrays.getPackedBits( mask );
+		final RandomAccess< T > intensityAccess = intensities == null ? null : intensities.randomAccess();
+
+		final double[] position = new double[ 3 ];
+		final double[] transformed = new double[ 3 ];
+		final long[] voxel = new long[ 3 ];
+
+		for ( int z = 0, i = 0; z < dimensions[ Z ]; ++z )
+		{
+			for ( int y = 0; y < dimensions[ Y ]; ++y )
+			{
+				position[ X ] = mask.min( X );
+				position[ Y ] = mask.min( Y ) + y;
+				position[ Z ] = mask.min( Z ) + z;
+				transform.apply( position, transformed );
+
+				for ( int x = 0; x < dimensions[ X ]; ++x, ++i )
+				{
+					if ( ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) != 0 )
+					{
+						// x-coordinate in the transformed image, as obtained by moving along the line
+						final double transformedX = transformed[ X ] + x * transform.get( X, X );
+						final int slice = ( int ) ( Math.round( transformedX ) - sliceSums.minX );
+
+						if ( slice < 0 || slice >= numSlices ) continue;
+
+						sliceSums.numVoxels[ slice ]++;
+						sliceSums.sumY[ slice ] += transformed[ Y ] + x * transform.get( Y, X );
+						sliceSums.sumZ[ slice ] += transformed[ Z ] + x * transform.get( Z, X );
+
+						if ( intensityAccess != null )
+						{
+							voxel[ X ] = mask.min( X ) + x;
+							voxel[ Y ] = ( long ) position[ Y ];
+							voxel[ Z ] = ( long ) position[ Z ];
+							intensityAccess.setPosition( voxel );
+							sliceSums.sumIntensities[ slice ] += intensityAccess.get().getRealDouble();
+						}
+					}
+				}
+			}
+		}
+
+		return sliceSums;
+	}
+}
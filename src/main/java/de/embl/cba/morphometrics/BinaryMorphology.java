@@ -0,0 +1,270 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Morphology of 3D binary masks.
+ *
+ * The closing with a sphere is computed by thresholding two distance transforms, at a cost that does not depend on the radius.
+ * Holes are filled on packed 64 bit rows, see {@link PackedMask}.
+ */
+public class BinaryMorphology
+{
+	/**
+	 * Closing with a sphere, computed as the threshold of the distance transform to the foreground (dilation),
+	 * followed by the threshold of the distance transform of the dilated mask to its background (erosion).
+	 *
+	 * @param mask
+	 * @param radius radius of the sphere, in units of the calibration
+	 * @param calibration voxel size along each axis
+	 * @return the closed mask, positioned at the interval of the input mask
+	 */
+	public static RandomAccessibleInterval< BitType > closeWithDistanceTransform( RandomAccessibleInterval< BitType > mask, double radius, double[] calibration )
+	{
+		if ( radius <= 0 ) return mask;
+
+		final double squaredRadius = radius * radius;
+
+		final RandomAccessibleInterval< BitType > dilated =
+				createMask( DistanceTransforms.computeSquaredDistancesToForeground( mask, calibration ), squaredRadius, false );
+
+		return createMask( DistanceTransforms.computeSquaredDistancesToBackground( dilated, calibration ), squaredRadius, true );
+	}
+
+	public static RandomAccessibleInterval< BitType > fillHoles( RandomAccessibleInterval< BitType > mask )
+	{
+		return fillHoles( PackedMask.fromMask( mask ) ).toMask( mask );
+	}
+
+	/**
+	 * Fills all background regions that are not connected to the image border,
+	 * using 26-connectivity for the background, as does the fillHoles op.
+	 *
+	 * The background reachable from the border is flooded row-wise:
+	 * within a row the flooding is bit-parallel, and rows whose reached background changed
+	 * are put on a work list, from which the flooding continues into their eight neighbouring rows,
+	 * seeded by the reached background of the row, extended by one voxel along X.
+	 */
+	public static PackedMask fillHoles( PackedMask mask )
+	{
+		final int wordsPerRow = mask.wordsPerRow;
+		final int numRows = mask.height * mask.depth;
+
+		final PackedMask background = mask.copy();
+		background.invert();
+
+		final PackedMask reached = new PackedMask( mask.width, mask.height, mask.depth );
+		final long[] seeds = new long[ wordsPerRow ];
+		final long[] extended = new long[ wordsPerRow ];
+
+		final int[] workList = new int[ numRows ];
+		final boolean[] isListed = new boolean[ numRows ];
+		int head = 0, size = 0;
+
+		// seed from the image border
+		for ( int z = 0; z < mask.depth; ++z )
+		{
+			for ( int y = 0; y < mask.height; ++y )
+			{
+				final int row = z * mask.height + y;
+				final int offset = row * wordsPerRow;
+
+				if ( y == 0 || y == mask.height - 1 || z == 0 || z == mask.depth - 1 )
+				{
+					System.arraycopy( background.words, offset, reached.words, offset, wordsPerRow );
+				}
+				else
+				{
+					Arrays.fill( seeds, 0 );
+					seeds[ 0 ] |= 1L;
+					seeds[ ( mask.width - 1 ) >>> 6 ] |= 1L << ( ( mask.width - 1 ) & 63 );
+					for ( int k = 0; k < wordsPerRow; ++k ) seeds[ k ] &= background.words[ offset + k ];
+
+					fillRow( seeds, background.words, offset, reached.words, offset, wordsPerRow );
+				}
+
+				if ( ! isEmpty( reached.words, offset, wordsPerRow ) )
+				{
+					workList[ ( head + size++ ) % numRows ] = row;
+					isListed[ row ] = true;
+				}
+			}
+		}
+
+		// flood
+		while ( size > 0 )
+		{
+			final int row = workList[ head ];
+			head = ( head + 1 ) % numRows;
+			size--;
+			isListed[ row ] = false;
+
+			final int y = row % mask.height;
+			final int z = row / mask.height;
+
+			extendByOne( reached.words, row * wordsPerRow, extended, wordsPerRow );
+
+			for ( int dz = -1; dz <= 1; ++dz )
+			{
+				if ( z + dz < 0 || z + dz >= mask.depth ) continue;
+
+				for ( int dy = -1; dy <= 1; ++dy )
+				{
+					if ( y + dy < 0 || y + dy >= mask.height || ( dy == 0 && dz == 0 ) ) continue;
+
+					final int neighbour = row + dz * mask.height + dy;
+					final int neighbourOffset = neighbour * wordsPerRow;
+
+					boolean hasNewSeeds = false;
+
+					for ( int k = 0; k < wordsPerRow; ++k )
+					{
+						seeds[ k ] = extended[ k ] & background.words[ neighbourOffset + k ] & ~ reached.words[ neighbourOffset + k ];
+						hasNewSeeds |= seeds[ k ] != 0;
+					}
+
+					if ( ! hasNewSeeds ) continue;
+
+					fillRow( seeds, background.words, neighbourOffset, reached.words, neighbourOffset, wordsPerRow );
+
+					if ( ! isListed[ neighbour ] )
+					{
+						workList[ ( head + size++ ) % numRows ] = neighbour;
+						isListed[ neighbour ] = true;
+					}
+				}
+			}
+		}
+
+		// everything that is not reachable background is foreground
+		reached.invert();
+
+		return reached;
+	}
+
+	/**
+	 * Adds to the reached bits all bits of the runs of background bits that contain a seed.
+	 * Within a word, the runs are filled by shifting with doubling distances,
+	 * across words by carrying the end bits.
+	 */
+	private static void fillRow( long[] seeds, long[] background, int backgroundOffset, long[] reached, int reachedOffset, int wordsPerRow )
+	{
+		// towards higher x
+		long carry = 0;
+		for ( int k = 0; k < wordsPerRow; ++k )
+		{
+			final long propagator = background[ backgroundOffset + k ];
+			seeds[ k ] = fillUp( ( seeds[ k ] | carry ) & propagator, propagator );
+			carry = seeds[ k ] >>> 63;
+		}
+
+		// towards lower x
+		carry = 0;
+		for ( int k = wordsPerRow - 1; k >= 0; --k )
+		{
+			final long propagator = background[ backgroundOffset + k ];
+			seeds[ k ] = fillDown( seeds[ k ] | ( ( carry << 63 ) & propagator ), propagator );
+			carry = seeds[ k ] & 1L;
+			reached[ reachedOffset + k ] |= seeds[ k ];
+		}
+	}
+
+	/**
+	 * Sets each bit of the row and its two neighbours along X, i.e. the bits within the diagonal reach of the row.
+	 */
+	private static void extendByOne( long[] words, int offset, long[] extended, int wordsPerRow )
+	{
+		for ( int k = 0; k < wordsPerRow; ++k )
+		{
+			final long word = words[ offset + k ];
+
+			long extendedWord = word | ( word << 1 ) | ( word >>> 1 );
+			if ( k > 0 ) extendedWord |= words[ offset + k - 1 ] >>> 63;
+			if ( k < wordsPerRow - 1 ) extendedWord |= words[ offset + k + 1 ] << 63;
+
+			extended[ k ] = extendedWord;
+		}
+	}
+
+	private static long fillUp( long generator, long propagator )
+	{
+		generator |= propagator & ( generator << 1 );
+		propagator &= propagator << 1;
+		generator |= propagator & ( generator << 2 );
+		propagator &= propagator << 2;
+		generator |= propagator & ( generator << 4 );
+		propagator &= propagator << 4;
+		generator |= propagator & ( generator << 8 );
+		propagator &= propagator << 8;
+		generator |= propagator & ( generator << 16 );
+		propagator &= propagator << 16;
+		generator |= propagator & ( generator << 32 );
+		return generator;
+	}
+
+	private static long fillDown( long generator, long propagator )
+	{
+		generator |= propagator & ( generator >>> 1 );
+		propagator &= propagator >>> 1;
+		generator |= propagator & ( generator >>> 2 );
+		propagator &= propagator >>> 2;
+		generator |= propagator & ( generator >>> 4 );
+		propagator &= propagator >>> 4;
+		generator |= propagator & ( generator >>> 8 );
+		propagator &= propagator >>> 8;
+		generator |= propagator & ( generator >>> 16 );
+		propagator &= propagator >>> 16;
+		generator |= propagator & ( generator >>> 32 );
+		return generator;
+	}
+
+	private static boolean isEmpty( long[] words, int offset, int length )
+	{
+		for ( int k = 0; k < length; ++k )
+		{
+			if ( words[ offset + k ] != 0 ) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return mask of the voxels whose squared distance is larger than ( above ) or at most ( ! above ) the threshold
+	 */
+	private static RandomAccessibleInterval< BitType > createMask( RandomAccessibleInterval< FloatType > squaredDistances, double threshold, boolean above )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( squaredDistances );
+		final float[] distances = FlatArrays.getFloats( squaredDistances );
+		final long[] bits = new long[ ( distances.length + 63 ) / 64 ];
+
+		// each task writes whole words
+		IntStream.range( 0, bits.length ).parallel().forEach( k ->
+		{
+			long word = 0;
+
+			for ( int i = k << 6, bit = 0; bit < 64 && i < distances.length; ++i, ++bit )
+			{
+				if ( ( distances[ i ] > threshold ) == above ) word |= 1L << bit;
+			}
+
+			bits[ k ] = word;
+		} );
+
+		final RandomAccessibleInterval< BitType > mask = ArrayImgs.bits( new LongArray( bits ), dimensions[ X ], dimensions[ Y ], dimensions[ Z ] );
+
+		return Views.translate( mask, Intervals.minAsLongArray( squaredDistances ) );
+	}
+}
@@ -0,0 +1,316 @@
+package de.embl.cba.morphometrics;
+
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Read-only XYZC view of the first series and time-point of a Bio-Formats readable file.
+ *
+ * Planes are decoded on demand and kept in a least recently used cache,
+ * whose size is bounded by a memory budget. Whenever a plane is decoded,
+ * the following planes along Z are read ahead in the background.
+ *
+ * The reader is shared by all channels and is only accessed by one thread at a time.
+ *
+ * @param <T> UnsignedByteType, UnsignedShortType or FloatType, depending on the pixel type of the file
+ */
+public class CachedBioFormatsImage< T extends RealType< T > & NativeType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >
+{
+	public static final int C = 3;
+
+	private final ImageProcessorReader reader;
+	private final T type;
+	private final int width;
+	private final int numPlanesToReadAhead;
+	private final LinkedHashMap< Integer, ImageProcessor > cache;
+	private final Set< Integer > planesScheduledForReadAhead;
+	private final ExecutorService readAheadService;
+	private final double[] calibration;
+	private final long planeSizeInBytes;
+	private final int maxNumCachedPlanes;
+
+	/**
+	 * @param path
+	 * @param memoryBudgetInBytes maximal memory used for cached planes
+	 * @param numPlanesToReadAhead number of planes along Z that are read ahead in the background
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	CachedBioFormatsImage< T > open( String path, long memoryBudgetInBytes, int numPlanesToReadAhead ) throws IOException, FormatException
+	{
+		final ImageProcessorReader reader = ImageIO.createImageProcessorReader( path );
+
+		try
+		{
+			return new CachedBioFormatsImage<>( reader, CachedBioFormatsImage.< T >createType( reader.getPixelType() ), memoryBudgetInBytes, numPlanesToReadAhead );
+		}
+		catch ( RuntimeException e )
+		{
+			reader.close();
+			throw e;
+		}
+	}
+
+	private CachedBioFormatsImage( ImageProcessorReader reader, T type, long memoryBudgetInBytes, int numPlanesToReadAhead )
+	{
+		super( new long[]{ reader.getSizeX(), reader.getSizeY(), reader.getSizeZ(), reader.getSizeC() } );
+
+		this.reader = reader;
+		this.type = type;
+		this.width = reader.getSizeX();
+		this.numPlanesToReadAhead = numPlanesToReadAhead;
+		this.calibration = ImageIO.getCalibration( reader );
+
+		this.planeSizeInBytes = ( long ) reader.getSizeX() * reader.getSizeY() * FormatTools.getBytesPerPixel( reader.getPixelType() );
+		this.maxNumCachedPlanes = ( int ) Math.max( 2, Math.min( Integer.MAX_VALUE, memoryBudgetInBytes / planeSizeInBytes ) );
+
+		this.cache = new LinkedHashMap< Integer, ImageProcessor >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< Integer, ImageProcessor > eldest )
+			{
+				return size() > maxNumCachedPlanes;
+			}
+		};
+
+		this.planesScheduledForReadAhead = new HashSet<>();
+
+		this.readAheadService = Executors.newSingleThreadExecutor( runnable -> {
+			final Thread thread = new Thread( runnable, "plane read-ahead" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * The type depends on the file, thus the caller has to request the matching T.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static < T extends RealType< T > & NativeType< T > > T createType( int pixelType )
+	{
+		switch ( pixelType )
+		{
+			case FormatTools.UINT8:
+			case FormatTools.INT8:
+				return ( T ) new UnsignedByteType();
+			case FormatTools.UINT16:
+			case FormatTools.INT16:
+				return ( T ) new UnsignedShortType();
+			default:
+				return ( T ) new FloatType();
+		}
+	}
+
+	/**
+	 * @return voxel size in micrometer
+	 */
+	public double[] getCalibration()
+	{
+		return calibration.clone();
+	}
+
+	/**
+	 * Decodes planes into the cache, channel by channel and in z order, i.e. in the order in which
+	 * the channels are resampled, as far as they fit into the cache and into maxBytes.
+	 * Calling this from a background thread moves the decoding of these planes out of the consumer of the image.
+	 *
+	 * @param maxBytes
+	 * @return memory of the decoded planes
+	 */
+	public long prefetchPlanes( long maxBytes )
+	{
+		final long numPlanes = Math.min( maxNumCachedPlanes, maxBytes / planeSizeInBytes );
+
+		long numDecoded = 0;
+
+		for ( int c = 0; c < dimension( C ) && numDecoded < numPlanes; ++c )
+		{
+			for ( int z = 0; z < dimension( Z ) && numDecoded < numPlanes; ++z )
+			{
+				readPlane( reader.getIndex( z, c, 0 ) );
+				numDecoded++;
+			}
+		}
+
+		return numDecoded * planeSizeInBytes;
+	}
+
+	public void close()
+	{
+		readAheadService.shutdownNow();
+
+		synchronized ( reader )
+		{
+			try
+			{
+				reader.close();
+			}
+			catch ( IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private ImageProcessor getPlane( int z, int c )
+	{
+		final int planeIndex = reader.getIndex( z, c, 0 );
+
+		synchronized ( cache )
+		{
+			final ImageProcessor plane = cache.get( planeIndex );
+			if ( plane != null ) return plane;
+		}
+
+		final ImageProcessor plane = readPlane( planeIndex );
+
+		scheduleReadAhead( z, c );
+
+		return plane;
+	}
+
+	private ImageProcessor readPlane( int planeIndex )
+	{
+		synchronized ( reader )
+		{
+			// another thread might have read the plane while we were waiting for the reader
+			synchronized ( cache )
+			{
+				final ImageProcessor plane = cache.get( planeIndex );
+				if ( plane != null ) return plane;
+			}
+
+			final ImageProcessor plane;
+
+			try
+			{
+				plane = reader.openProcessors( planeIndex )[ 0 ];
+			}
+			catch ( Exception e )
+			{
+				throw new RuntimeException( "Could not read plane " + planeIndex + " of " + reader.getCurrentFile(), e );
+			}
+
+			synchronized ( cache )
+			{
+				cache.put( planeIndex, plane );
+			}
+
+			return plane;
+		}
+	}
+
+	private void scheduleReadAhead( int z, int c )
+	{
+		for ( int readAheadZ = z + 1; readAheadZ <= Math.min( z + numPlanesToReadAhead, max( Z ) ); ++readAheadZ )
+		{
+			final int planeIndex = reader.getIndex( readAheadZ, c, 0 );
+
+			synchronized ( planesScheduledForReadAhead )
+			{
+				if ( ! planesScheduledForReadAhead.add( planeIndex ) ) continue;
+			}
+
+			readAheadService.submit( () -> {
+				try
+				{
+					readPlane( planeIndex );
+				}
+				finally
+				{
+					synchronized ( planesScheduledForReadAhead )
+					{
+						planesScheduledForReadAhead.remove( planeIndex );
+					}
+				}
+			} );
+		}
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new PlaneAccess();
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( Interval interval )
+	{
+		return randomAccess();
+	}
+
+	private class PlaneAccess extends Point implements RandomAccess< T >
+	{
+		private final T value;
+		private ImageProcessor plane;
+		private long planeZ;
+		private long planeC;
+
+		PlaneAccess()
+		{
+			super( 4 );
+			value = type.createVariable();
+			planeZ = -1;
+			planeC = -1;
+		}
+
+		PlaneAccess( PlaneAccess access )
+		{
+			super( access );
+			value = type.createVariable();
+			plane = access.plane;
+			planeZ = access.planeZ;
+			planeC = access.planeC;
+		}
+
+		@Override
+		public T get()
+		{
+			if ( position[ Z ] != planeZ || position[ C ] != planeC )
+			{
+				planeZ = position[ Z ];
+				planeC = position[ C ];
+				plane = getPlane( ( int ) planeZ, ( int ) planeC );
+			}
+
+			value.setReal( plane.getf( ( int ) position[ Y ] * width + ( int ) position[ X ] ) );
+
+			return value;
+		}
+
+		@Override
+		public PlaneAccess copy()
+		{
+			return new PlaneAccess( this );
+		}
+
+		@Override
+		public PlaneAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+}
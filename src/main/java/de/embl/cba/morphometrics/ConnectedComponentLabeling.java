@@ -0,0 +1,322 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Labels the connected components of a 3D mask, with voxels connected to all their 26 neighbours.
+ *
+ * The image is split into z-slabs which are labeled in parallel into one union-find forest.
+ * The slabs are then merged by uniting the voxels across the slab boundaries, again in parallel.
+ * Unions are lock-free: roots are always linked to the root with the smaller voxel index,
+ * using compare-and-set, such that the final root of each component is its first voxel in flat order.
+ * Labels are numbered in that order, and the statistics are accumulated while writing the labels,
+ * per slab only for the labels occurring in it.
+ */
+public class ConnectedComponentLabeling
+{
+	private static final int BACKGROUND = -1;
+
+	public static LabeledComponents label( RandomAccessibleInterval< BitType > mask )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+		final long[] bits = FlatArrays.getPackedBits( mask );
+
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int depth = dimensions[ Z ];
+		final int planeSize = width * height;
+
+		final AtomicIntegerArray parents = new AtomicIntegerArray( planeSize * depth );
+
+		final int[] slabStarts = createSlabStarts( depth );
+		final int numSlabs = slabStarts.length - 1;
+
+		// union-find within slabs
+		IntStream.range( 0, numSlabs ).parallel().forEach( slab ->
+		{
+			for ( int z = slabStarts[ slab ]; z < slabStarts[ slab + 1 ]; ++z )
+			{
+				for ( int y = 0; y < height; ++y )
+				{
+					for ( int x = 0, i = z * planeSize + y * width; x < width; ++x, ++i )
+					{
+						if ( ! isSet( bits, i ) )
+						{
+							parents.set( i, BACKGROUND );
+							continue;
+						}
+
+						parents.set( i, i );
+
+						// already visited neighbours within the slab
+						final int minZ = z == slabStarts[ slab ] ? z : z - 1;
+						uniteWithPreviousNeighbours( parents, bits, x, y, z, minZ, i, dimensions );
+					}
+				}
+			}
+		} );
+
+		// union-find across slab boundaries
+		IntStream.range( 1, numSlabs ).parallel().forEach( slab ->
+		{
+			final int z = slabStarts[ slab ];
+
+			for ( int y = 0; y < height; ++y )
+			{
+				for ( int x = 0, i = z * planeSize + y * width; x < width; ++x, ++i )
+				{
+					if ( isSet( bits, i ) ) uniteWithPlaneBelow( parents, bits, x, y, z, i, dimensions );
+				}
+			}
+		} );
+
+		// roots are numbered in flat order
+		final int[] labels = new int[ planeSize * depth ];
+
+		int numLabels = 0;
+		for ( int i = 0; i < labels.length; ++i )
+		{
+			if ( parents.get( i ) == i ) labels[ i ] = ++numLabels;
+		}
+
+		final LabeledComponents components = new LabeledComponents();
+		components.numLabels = numLabels;
+
+		writeLabelsAndStatistics( parents, labels, slabStarts, dimensions, mask, components );
+
+		components.labelImg = Transforms.getWithAdjustedOrigin( mask, ArrayImgs.ints( labels, width, height, depth ) );
+
+		return components;
+	}
+
+	private static void writeLabelsAndStatistics( AtomicIntegerArray parents, int[] labels, int[] slabStarts, int[] dimensions, RandomAccessibleInterval< BitType > mask, LabeledComponents components )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int planeSize = width * height;
+		final int numSlabs = slabStarts.length - 1;
+		final int numLabels = components.numLabels;
+
+		// only the labels occurring in a slab get statistics, such that memory does not scale with numSlabs * numLabels
+		final List< Map< Integer, ComponentStatistics > > slabStatistics = new ArrayList<>( Collections.nCopies( numSlabs, null ) );
+
+		IntStream.range( 0, numSlabs ).parallel().forEach( slab ->
+		{
+			final Map< Integer, ComponentStatistics > statistics = new HashMap<>();
+
+			int previousLabel = 0;
+			ComponentStatistics previousStatistics = null;
+
+			for ( int z = slabStarts[ slab ]; z < slabStarts[ slab + 1 ]; ++z )
+			{
+				for ( int y = 0; y < height; ++y )
+				{
+					for ( int x = 0, i = z * planeSize + y * width; x < width; ++x, ++i )
+					{
+						if ( parents.get( i ) == BACKGROUND ) continue;
+
+						// all roots have been numbered before
+						final int label = labels[ find( parents, i ) ];
+
+						labels[ i ] = label;
+
+						// neighbouring voxels mostly have the same label, which saves the map lookup
+						if ( label != previousLabel )
+						{
+							previousStatistics = statistics.computeIfAbsent( label, l -> new ComponentStatistics() );
+							previousLabel = label;
+						}
+
+						previousStatistics.add( x, y, z );
+					}
+				}
+			}
+
+			slabStatistics.set( slab, statistics );
+		} );
+
+		components.sizes = new long[ numLabels + 1 ];
+		components.boundingBoxMins = createFilled( numLabels + 1, Long.MAX_VALUE );
+		components.boundingBoxMaxs = createFilled( numLabels + 1, Long.MIN_VALUE );
+		components.centroids = new double[ numLabels + 1 ][ 3 ];
+
+		for ( Map< Integer, ComponentStatistics > statistics : slabStatistics )
+		{
+			for ( Map.Entry< Integer, ComponentStatistics > entry : statistics.entrySet() )
+			{
+				final int label = entry.getKey();
+				final ComponentStatistics slabComponent = entry.getValue();
+
+				components.sizes[ label ] += slabComponent.size;
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					components.boundingBoxMins[ label ][ d ] = Math.min( components.boundingBoxMins[ label ][ d ], slabComponent.mins[ d ] );
+					components.boundingBoxMaxs[ label ][ d ] = Math.max( components.boundingBoxMaxs[ label ][ d ], slabComponent.maxs[ d ] );
+					components.centroids[ label ][ d ] += slabComponent.sums[ d ];
+				}
+			}
+		}
+
+		for ( int label = 1; label <= numLabels; ++label )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				components.boundingBoxMins[ label ][ d ] += mask.min( d );
+				components.boundingBoxMaxs[ label ][ d ] += mask.min( d );
+				components.centroids[ label ][ d ] = components.centroids[ label ][ d ] / components.sizes[ label ] + mask.min( d );
+			}
+		}
+	}
+
+	/**
+	 * Size, bounding box and coordinate sums of the part of one component within one slab.
+	 */
+	private static class ComponentStatistics
+	{
+		long size;
+		final long[] mins = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		final long[] maxs = { Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE };
+		final double[] sums = new double[ 3 ];
+
+		void add( long x, long y, long z )
+		{
+			size++;
+			add( x, X );
+			add( y, Y );
+			add( z, Z );
+		}
+
+		private void add( long position, int d )
+		{
+			if ( position < mins[ d ] ) mins[ d ] = position;
+			if ( position > maxs[ d ] ) maxs[ d ] = position;
+			sums[ d ] += position;
+		}
+	}
+
+	private static void uniteWithPreviousNeighbours( AtomicIntegerArray parents, long[] bits, int x, int y, int z, int minZ, int i, int[] dimensions )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int planeSize = width * height;
+
+		for ( int nz = minZ; nz <= z; ++nz )
+		{
+			for ( int ny = Math.max( 0, y - 1 ); ny <= Math.min( height - 1, y + 1 ); ++ny )
+			{
+				if ( nz == z && ny > y ) break;
+
+				for ( int nx = Math.max( 0, x - 1 ); nx <= Math.min( width - 1, x + 1 ); ++nx )
+				{
+					final int j = nz * planeSize + ny * width + nx;
+
+					if ( j >= i ) break;
+
+					if ( isSet( bits, j ) ) union( parents, i, j );
+				}
+			}
+		}
+	}
+
+	private static void uniteWithPlaneBelow( AtomicIntegerArray parents, long[] bits, int x, int y, int z, int i, int[] dimensions )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int planeSize = width * height;
+
+		for ( int ny = Math.max( 0, y - 1 ); ny <= Math.min( height - 1, y + 1 ); ++ny )
+		{
+			for ( int nx = Math.max( 0, x - 1 ); nx <= Math.min( width - 1, x + 1 ); ++nx )
+			{
+				final int j = ( z - 1 ) * planeSize + ny * width + nx;
+
+				if ( isSet( bits, j ) ) union( parents, i, j );
+			}
+		}
+	}
+
+	private static int find( AtomicIntegerArray parents, int i )
+	{
+		while ( true )
+		{
+			final int parent = parents.get( i );
+
+			if ( parent == i ) return i;
+
+			final int grandParent = parents.get( parent );
+
+			// path halving; failing is harmless, as another thread then has already shortened the path
+			if ( grandParent != parent ) parents.compareAndSet( i, parent, grandParent );
+
+			i = parent;
+		}
+	}
+
+	private static void union( AtomicIntegerArray parents, int i, int j )
+	{
+		while ( true )
+		{
+			int rootI = find( parents, i );
+			int rootJ = find( parents, j );
+
+			if ( rootI == rootJ ) return;
+
+			// link the larger index to the smaller index, which cannot create cycles
+			if ( rootI < rootJ )
+			{
+				final int tmp = rootI;
+				rootI = rootJ;
+				rootJ = tmp;
+			}
+
+			if ( parents.compareAndSet( rootI, rootI, rootJ ) ) return;
+		}
+	}
+
+	private static int[] createSlabStarts( int depth )
+	{
+		final int numSlabs = Math.max( 1, Math.min( depth, Runtime.getRuntime().availableProcessors() * 4 ) );
+
+		final int[] slabStarts = new int[ numSlabs + 1 ];
+
+		for ( int slab = 0; slab <= numSlabs; ++slab )
+		{
+			slabStarts[ slab ] = ( int ) ( ( long ) slab * depth / numSlabs );
+		}
+
+		return slabStarts;
+	}
+
+	private static long[][] createFilled( int n, long value )
+	{
+		final long[][] array = new long[ n ][ 3 ];
+
+		for ( long[] element : array )
+		{
+			Arrays.fill( element, value );
+		}
+
+		return array;
+	}
+
+	private static boolean isSet( long[] bits, int i )
+	{
+		return ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) != 0;
+	}
+}
@@ -0,0 +1,229 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Separable Euclidean distance transform of 3D binary masks,
+ * following Felzenszwalb and Huttenlocher, "Distance Transforms of Sampled Functions" (2012).
+ *
+ * The X pass reads the packed bits of the mask directly,
+ * the Y and Z passes compute lower envelopes of parabolas.
+ * Within each pass the lines are processed in parallel.
+ */
+public class DistanceTransforms
+{
+	/**
+	 * Squared distance of voxels without any background voxel in reach.
+	 */
+	public static final float INFINITE_DISTANCE = 1.0E20F;
+
+	/**
+	 * @param mask
+	 * @param calibration voxel size along each axis; use 1.0 for distances in voxel units
+	 * @return for each foreground voxel the squared Euclidean distance to the closest background voxel
+	 * (in units of the calibration); zero for background voxels;
+	 * {@link #INFINITE_DISTANCE} if the mask does not contain any background
+	 */
+	public static RandomAccessibleInterval< FloatType > computeSquaredDistancesToBackground(
+			RandomAccessibleInterval< BitType > mask,
+			double[] calibration )
+	{
+		return computeSquaredDistances( mask, calibration, false );
+	}
+
+	/**
+	 * @param mask
+	 * @param calibration voxel size along each axis; use 1.0 for distances in voxel units
+	 * @return for each background voxel the squared Euclidean distance to the closest foreground voxel
+	 * (in units of the calibration); zero for foreground voxels;
+	 * {@link #INFINITE_DISTANCE} if the mask does not contain any foreground
+	 */
+	public static RandomAccessibleInterval< FloatType > computeSquaredDistancesToForeground(
+			RandomAccessibleInterval< BitType > mask,
+			double[] calibration )
+	{
+		return computeSquaredDistances( mask, calibration, true );
+	}
+
+	private static RandomAccessibleInterval< FloatType > computeSquaredDistances(
+			RandomAccessibleInterval< BitType > mask,
+			double[] calibration,
+			boolean toForeground )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+
+		final long[] bits = FlatArrays.getPackedBits( mask );
+		final float[] distances = new float[ dimensions[ X ] * dimensions[ Y ] * dimensions[ Z ] ];
+
+		computeAlongX( bits, toForeground, distances, dimensions, calibration[ X ] * calibration[ X ] );
+		computeAlongY( distances, dimensions, calibration[ Y ] * calibration[ Y ] );
+		computeAlongZ( distances, dimensions, calibration[ Z ] * calibration[ Z ] );
+
+		final RandomAccessibleInterval< FloatType > output = ArrayImgs.floats( distances, dimensions[ X ], dimensions[ Y ], dimensions[ Z ] );
+
+		return Transforms.getWithAdjustedOrigin( mask, output );
+	}
+
+	/**
+	 * Two sweeps along each line, measuring the distance to the closest target voxel within the line.
+	 * Target voxels are the unset bits, or the set bits if the bits are inverted.
+	 */
+	private static void computeAlongX( long[] bits, boolean invert, float[] distances, int[] dimensions, double weight )
+	{
+		final int width = dimensions[ X ];
+		final long target = invert ? 1L : 0L;
+
+		IntStream.range( 0, dimensions[ Y ] * dimensions[ Z ] ).parallel().forEach( line ->
+		{
+			final int offset = line * width;
+			int background = -1;
+
+			for ( int x = 0; x < width; ++x )
+			{
+				final int i = offset + x;
+
+				if ( ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) == target )
+				{
+					background = x;
+					distances[ i ] = 0;
+				}
+				else
+				{
+					distances[ i ] = background < 0 ? INFINITE_DISTANCE : ( float ) ( weight * ( x - background ) * ( x - background ) );
+				}
+			}
+
+			if ( background < 0 ) return; // no target voxel in this line
+
+			background = -1;
+
+			for ( int x = width - 1; x >= 0; --x )
+			{
+				final int i = offset + x;
+
+				if ( distances[ i ] == 0 )
+				{
+					background = x;
+				}
+				else if ( background >= 0 )
+				{
+					distances[ i ] = Math.min( distances[ i ], ( float ) ( weight * ( background - x ) * ( background - x ) ) );
+				}
+			}
+		} );
+	}
+
+	private static void computeAlongY( float[] distances, int[] dimensions, double weight )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+
+		IntStream.range( 0, dimensions[ Z ] ).parallel().forEach( z ->
+		{
+			final LowerEnvelope envelope = new LowerEnvelope( height );
+
+			for ( int x = 0; x < width; ++x )
+			{
+				envelope.transform( distances, z * width * height + x, width, weight );
+			}
+		} );
+	}
+
+	private static void computeAlongZ( float[] distances, int[] dimensions, double weight )
+	{
+		final int width = dimensions[ X ];
+		final int planeSize = dimensions[ X ] * dimensions[ Y ];
+
+		IntStream.range( 0, dimensions[ Y ] ).parallel().forEach( y ->
+		{
+			final LowerEnvelope envelope = new LowerEnvelope( dimensions[ Z ] );
+
+			for ( int x = 0; x < width; ++x )
+			{
+				envelope.transform( distances, y * width + x, planeSize, weight );
+			}
+		} );
+	}
+
+	/**
+	 * One dimensional squared distance transform of a sampled function,
+	 * with buffers that are reused for all lines of one thread.
+	 */
+	private static class LowerEnvelope
+	{
+		private final int n;
+		private final double[] f;
+		private final int[] v;
+		private final double[] z;
+
+		LowerEnvelope( int n )
+		{
+			this.n = n;
+			this.f = new double[ n ];
+			this.v = new int[ n ];
+			this.z = new double[ n + 1 ];
+		}
+
+		void transform( float[] values, int offset, int stride, double weight )
+		{
+			boolean isFinite = false;
+			boolean isPositive = false;
+
+			for ( int q = 0; q < n; ++q )
+			{
+				f[ q ] = values[ offset + q * stride ];
+				isFinite |= f[ q ] < INFINITE_DISTANCE;
+				isPositive |= f[ q ] > 0;
+			}
+
+			// nothing to propagate, or nothing to improve
+			if ( ! isFinite || ! isPositive ) return;
+
+			int k = 0;
+			v[ 0 ] = 0;
+			z[ 0 ] = Double.NEGATIVE_INFINITY;
+			z[ 1 ] = Double.POSITIVE_INFINITY;
+
+			for ( int q = 1; q < n; ++q )
+			{
+				double s = intersection( q, v[ k ], weight );
+
+				while ( s <= z[ k ] )
+				{
+					--k;
+					s = intersection( q, v[ k ], weight );
+				}
+
+				++k;
+				v[ k ] = q;
+				z[ k ] = s;
+				z[ k + 1 ] = Double.POSITIVE_INFINITY;
+			}
+
+			k = 0;
+
+			for ( int p = 0; p < n; ++p )
+			{
+				while ( z[ k + 1 ] < p ) ++k;
+
+				final double distance = weight * ( p - v[ k ] ) * ( p - v[ k ] ) + f[ v[ k ] ];
+
+				values[ offset + p * stride ] = ( float ) Math.min( distance, INFINITE_DISTANCE );
+			}
+		}
+
+		private double intersection( int q, int p, double weight )
+		{
+			return ( ( f[ q ] + weight * q * q ) - ( f[ p ] + weight * p * p ) ) / ( 2.0 * weight * ( q - p ) );
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package de.embl.cba.morphometrics;
+
+/**
+ * In-place radix-2 fast Fourier transform of complex 1D signals,
+ * given as separate arrays of real and imaginary parts.
+ */
+public class FFT
+{
+	public static boolean isPowerOfTwo( int n )
+	{
+		return n > 0 && ( n & ( n - 1 ) ) == 0;
+	}
+
+	/**
+	 * @param real real parts, length must be a power of two
+	 * @param imaginary imaginary parts, same length as the real parts
+	 * @param inverse whether to compute the inverse transform, which includes the normalisation by the length
+	 */
+	public static void transform( double[] real, double[] imaginary, boolean inverse )
+	{
+		final int n = real.length;
+
+		if ( ! isPowerOfTwo( n ) || imaginary.length != n )
+		{
+			throw new IllegalArgumentException( "FFT length must be a power of two: " + n );
+		}
+
+		// bit reversal permutation
+		for ( int i = 1, j = 0; i < n; ++i )
+		{
+			int bit = n >> 1;
+			for ( ; ( j & bit ) != 0; bit >>= 1 ) j ^= bit;
+			j ^= bit;
+
+			if ( i < j )
+			{
+				swap( real, i, j );
+				swap( imaginary, i, j );
+			}
+		}
+
+		// butterflies
+		for ( int length = 2; length <= n; length <<= 1 )
+		{
+			final double angle = ( inverse ? 2 : -2 ) * Math.PI / length;
+			final double stepReal = Math.cos( angle );
+			final double stepImaginary = Math.sin( angle );
+
+			for ( int start = 0; start < n; start += length )
+			{
+				double twiddleReal = 1.0;
+				double twiddleImaginary = 0.0;
+
+				for ( int k = 0; k < length / 2; ++k )
+				{
+					final int even = start + k;
+					final int odd = even + length / 2;
+
+					final double oddReal = real[ odd ] * twiddleReal - imaginary[ odd ] * twiddleImaginary;
+					final double oddImaginary = real[ odd ] * twiddleImaginary + imaginary[ odd ] * twiddleReal;
+
+					real[ odd ] = real[ even ] - oddReal;
+					imaginary[ odd ] = imaginary[ even ] - oddImaginary;
+					real[ even ] += oddReal;
+					imaginary[ even ] += oddImaginary;
+
+					final double nextTwiddleReal = twiddleReal * stepReal - twiddleImaginary * stepImaginary;
+					twiddleImaginary = twiddleReal * stepImaginary + twiddleImaginary * stepReal;
+					twiddleReal = nextTwiddleReal;
+				}
+			}
+		}
+
+		if ( inverse )
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				real[ i ] /= n;
+				imaginary[ i ] /= n;
+			}
+		}
+	}
+
+	private static void swap( double[] array, int i, int j )
+	{
+		final double tmp = array[ i ];
+		array[ i ] = array[ j ];
+		array[ j ] = tmp;
+	}
+}
@@ -0,0 +1,144 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Access to images as flat primitive arrays in X-fastest order, as used by the array based engines.
+ *
+ * If an image is an ArrayImg, or a translated view of one, its storage array is returned as is;
+ * otherwise the voxels are copied.
+ */
+public class FlatArrays
+{
+	public static long[] getPackedBits( RandomAccessibleInterval< BitType > rai )
+	{
+		final Object storage = getStorage( rai );
+
+		if ( storage instanceof LongArray ) return ( ( LongArray ) storage ).getCurrentStorageArray();
+
+		final long numVoxels = Views.iterable( rai ).size();
+		final long[] bits = new long[ ( int ) ( ( numVoxels + 63 ) / 64 ) ];
+
+		final Cursor< BitType > cursor = Views.flatIterable( rai ).cursor();
+
+		for ( int i = 0; i < numVoxels; ++i )
+		{
+			if ( cursor.next().get() ) bits[ i >>> 6 ] |= 1L << ( i & 63 );
+		}
+
+		return bits;
+	}
+
+	public static < T extends RealType< T > > float[] getFloats( RandomAccessibleInterval< T > rai )
+	{
+		final Object storage = getStorage( rai );
+
+		if ( storage instanceof FloatArray ) return ( ( FloatArray ) storage ).getCurrentStorageArray();
+
+		final float[] floats = new float[ ( int ) Views.iterable( rai ).size() ];
+
+		final Cursor< T > cursor = Views.flatIterable( rai ).cursor();
+
+		for ( int i = 0; i < floats.length; ++i )
+		{
+			floats[ i ] = cursor.next().getRealFloat();
+		}
+
+		return floats;
+	}
+
+	public static < T extends RealType< T > > int[] getInts( RandomAccessibleInterval< T > rai )
+	{
+		final Object storage = getStorage( rai );
+
+		if ( storage instanceof IntArray ) return ( ( IntArray ) storage ).getCurrentStorageArray();
+
+		final int[] ints = new int[ ( int ) Views.iterable( rai ).size() ];
+
+		final Cursor< T > cursor = Views.flatIterable( rai ).cursor();
+
+		for ( int i = 0; i < ints.length; ++i )
+		{
+			ints[ i ] = ( int ) cursor.next().getRealDouble();
+		}
+
+		return ints;
+	}
+
+	/**
+	 * @return the primitive storage array of the ArrayImg underlying the image,
+	 * or null if the image cannot be accessed as one flat array
+	 */
+	public static Object getPrimitiveArray( RandomAccessibleInterval< ? > rai )
+	{
+		final Object storage = getStorage( rai );
+
+		if ( storage instanceof ArrayDataAccess ) return ( ( ArrayDataAccess< ? > ) storage ).getCurrentStorageArray();
+
+		return null;
+	}
+
+	public static int[] getDimensions( RandomAccessibleInterval< ? > rai )
+	{
+		final int[] dimensions = new int[ rai.numDimensions() ];
+
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			dimensions[ d ] = ( int ) rai.dimension( d );
+		}
+
+		return dimensions;
+	}
+
+	/**
+	 * @return the storage of the ArrayImg underlying the image, or null if there is no such ArrayImg
+	 * or if the image does not cover it exactly
+	 */
+	private static Object getStorage( RandomAccessibleInterval< ? > rai )
+	{
+		if ( rai instanceof ArrayImg ) return ( ( ArrayImg ) rai ).update( null );
+
+		if ( ! ( rai instanceof IntervalView ) ) return null;
+
+		final RandomAccessible< ? > source = ( ( IntervalView< ? > ) rai ).getSource();
+
+		if ( ! ( source instanceof MixedTransformView ) ) return null;
+
+		final MixedTransformView< ? > view = ( MixedTransformView< ? > ) source;
+
+		if ( ! ( view.getSource() instanceof ArrayImg ) ) return null;
+
+		final ArrayImg img = ( ArrayImg ) view.getSource();
+		final MixedTransform transform = view.getTransformToSource();
+
+		if ( img.numDimensions() != rai.numDimensions() ) return null;
+
+		for ( int d = 0; d < rai.numDimensions(); ++d )
+		{
+			// only translations that map the view exactly onto the image
+			if ( transform.getComponentZero( d )
+					|| transform.getComponentMapping( d ) != d
+					|| transform.getComponentInversion( d )
+					|| rai.min( d ) + transform.getTranslation( d ) != 0
+					|| rai.dimension( d ) != img.dimension( d ) )
+			{
+				return null;
+			}
+		}
+
+		return img.update( null );
+	}
+}
@@ -1,13 +1,27 @@
 package de.embl.cba.morphometrics;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
+import loci.formats.MetadataTools;
+import loci.formats.meta.MetadataRetrieve;
 import loci.plugins.in.ImagePlusReader;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
 
 public class ImageIO
 {
@@ -36,5 +50,261 @@ public class ImageIO
 
 	}
 
+	/**
+	 * Opens one channel of the first series at approximately the given voxel size,
+	 * reading as little of the file as possible:
+	 * - if the file contains a resolution pyramid, the coarsest level that is still
+	 *   at least as fine as the target voxel size is read;
+	 * - the remaining down-sampling in XY is done by binning while reading each plane;
+	 * - along Z only every n-th plane is read, keeping at least two planes per target voxel.
+	 *
+	 * The returned image is not isotropic; its calibration (including the origin,
+	 * which accounts for the binning) relates its voxels to the full resolution voxels.
+	 *
+	 * @param path
+	 * @param channel zero based channel index
+	 * @param targetVoxelSize in micrometer
+	 * @return 32-bit image of the channel, or null if the file could not be read
+	 */
+	public static ImagePlus openWithBioFormatsAtResolution( String path, int channel, double targetVoxelSize )
+	{
+		ImageProcessorReader reader = null;
+
+		try
+		{
+			reader = createImageProcessorReader( path );
+
+			final double[] calibration = getCalibration( reader );
+			final int fullResolutionWidth = reader.getSizeX();
+
+			final int[] levelBinningAndZStride = getLevelBinningAndZStride( reader, calibration, targetVoxelSize );
+
+			reader.setResolution( levelBinningAndZStride[ 0 ] );
+
+			final double levelScaling = 1.0 * fullResolutionWidth / reader.getSizeX();
+			final int binning = levelBinningAndZStride[ 1 ];
+			final int zStride = levelBinningAndZStride[ 2 ];
+
+			final ImageStack stack = new ImageStack( reader.getSizeX() / binning, reader.getSizeY() / binning );
+
+			for ( int z = 0; z < reader.getSizeZ(); z += zStride )
+			{
+				final ImageProcessor plane = reader.openProcessors( reader.getIndex( z, channel, 0 ) )[ 0 ];
+				stack.addSlice( createBinnedProcessor( plane, binning ) );
+			}
+
+			final ImagePlus imp = new ImagePlus( path + "-channel" + ( channel + 1 ), stack );
+			imp.setDimensions( 1, stack.getSize(), 1 );
+
+			final Calibration impCalibration = imp.getCalibration();
+			impCalibration.setUnit( "micrometer" );
+			impCalibration.pixelWidth = calibration[ X ] * levelScaling * binning;
+			impCalibration.pixelHeight = calibration[ Y ] * levelScaling * binning;
+			impCalibration.pixelDepth = calibration[ Z ] * zStride;
+			// binned voxel centers are shifted with respect to the full resolution voxel centers
+			impCalibration.xOrigin = - ( levelScaling * binning - 1.0 ) / ( 2.0 * levelScaling * binning );
+			impCalibration.yOrigin = impCalibration.xOrigin;
+
+			return imp;
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			close( reader );
+		}
+	}
+
+	/**
+	 * Reads only the metadata of the file.
+	 *
+	 * @param path
+	 * @param targetVoxelSize in micrometer
+	 * @return memory of the image returned by {@link #openWithBioFormatsAtResolution} for the same arguments,
+	 * or 0 if the file could not be read
+	 */
+	public static long openSizeInBytesAtResolution( String path, double targetVoxelSize )
+	{
+		ImageProcessorReader reader = null;
+
+		try
+		{
+			reader = createImageProcessorReader( path );
+
+			final int[] levelBinningAndZStride = getLevelBinningAndZStride( reader, getCalibration( reader ), targetVoxelSize );
+
+			reader.setResolution( levelBinningAndZStride[ 0 ] );
+
+			final long numSlices = ( reader.getSizeZ() + levelBinningAndZStride[ 2 ] - 1 ) / levelBinningAndZStride[ 2 ];
+
+			return 4L * ( reader.getSizeX() / levelBinningAndZStride[ 1 ] ) * ( reader.getSizeY() / levelBinningAndZStride[ 1 ] ) * numSlices;
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			return 0;
+		}
+		finally
+		{
+			close( reader );
+		}
+	}
+
+	/**
+	 * Reads only the metadata of the file.
+	 *
+	 * @param path
+	 * @return voxel size of the full resolution of the first series in micrometer, or null if the file could not be read
+	 */
+	public static double[] openCalibration( String path )
+	{
+		ImageProcessorReader reader = null;
+
+		try
+		{
+			reader = createImageProcessorReader( path );
+			return getCalibration( reader );
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			close( reader );
+		}
+	}
+
+	public static ImageProcessorReader createImageProcessorReader( String path ) throws FormatException, IOException
+	{
+		final ImageProcessorReader reader = new ImageProcessorReader( new ChannelSeparator( LociPrefs.makeImageReader() ) );
+		reader.setMetadataStore( MetadataTools.createOMEXMLMetadata() );
+		reader.setFlattenedResolutions( false );
+		reader.setId( path );
+		reader.setSeries( 0 );
+		return reader;
+	}
+
+	/**
+	 * @return voxel size of the full resolution of the current series in micrometer (1.0 if unknown)
+	 */
+	public static double[] getCalibration( ImageProcessorReader reader )
+	{
+		final MetadataRetrieve metadata = ( MetadataRetrieve ) reader.getMetadataStore();
+		final int series = reader.getSeries();
+
+		final double[] calibration = new double[ 3 ];
+		calibration[ X ] = toMicrometer( metadata.getPixelsPhysicalSizeX( series ) );
+		calibration[ Y ] = toMicrometer( metadata.getPixelsPhysicalSizeY( series ) );
+		calibration[ Z ] = toMicrometer( metadata.getPixelsPhysicalSizeZ( series ) );
+
+		return calibration;
+	}
+
+	private static double toMicrometer( Length length )
+	{
+		if ( length == null || length.value( UNITS.MICROMETER ) == null ) return 1.0;
+
+		return length.value( UNITS.MICROMETER ).doubleValue();
+	}
+
+	/**
+	 * @return the resolution level, the binning in x and y, and the stride in z of the image at the target voxel size
+	 */
+	private static int[] getLevelBinningAndZStride( ImageProcessorReader reader, double[] calibration, double targetVoxelSize )
+	{
+		final int fullResolutionWidth = reader.getSizeX();
+		final int level = getResolutionLevel( reader, calibration[ X ], targetVoxelSize );
+
+		reader.setResolution( level );
+		final double levelScaling = 1.0 * fullResolutionWidth / reader.getSizeX();
+		reader.setResolution( 0 );
+
+		final int binning = Math.max( 1, ( int ) ( targetVoxelSize / ( calibration[ X ] * levelScaling ) ) );
+		final int zStride = Math.max( 1, ( int ) ( targetVoxelSize / calibration[ Z ] / 2.0 ) );
+
+		return new int[]{ level, binning, zStride };
+	}
+
+	/**
+	 * @return the coarsest resolution level whose voxel size in X does not exceed the target voxel size
+	 */
+	private static int getResolutionLevel( ImageProcessorReader reader, double fullResolutionVoxelSize, double targetVoxelSize )
+	{
+		final int fullResolutionWidth = reader.getSizeX();
+
+		int level = 0;
+
+		for ( int r = 1; r < reader.getResolutionCount(); ++r )
+		{
+			reader.setResolution( r );
+
+			final double voxelSize = fullResolutionVoxelSize * fullResolutionWidth / reader.getSizeX();
+
+			if ( voxelSize <= targetVoxelSize ) level = r;
+		}
+
+		reader.setResolution( 0 );
+
+		return level;
+	}
+
+	private static FloatProcessor createBinnedProcessor( ImageProcessor plane, int binning )
+	{
+		final int width = plane.getWidth();
+		final int binnedWidth = width / binning;
+		final int binnedHeight = plane.getHeight() / binning;
+
+		final float[] pixels = ( float[] ) plane.convertToFloat().getPixels();
+		final float[] binned = new float[ binnedWidth * binnedHeight ];
+
+		if ( binning == 1 )
+		{
+			System.arraycopy( pixels, 0, binned, 0, binned.length );
+			return new FloatProcessor( binnedWidth, binnedHeight, binned );
+		}
+
+		final double normalisation = 1.0 / ( binning * binning );
+
+		for ( int y = 0; y < binnedHeight; ++y )
+		{
+			for ( int x = 0; x < binnedWidth; ++x )
+			{
+				double sum = 0;
+
+				for ( int dy = 0; dy < binning; ++dy )
+				{
+					final int offset = ( y * binning + dy ) * width + x * binning;
+
+					for ( int dx = 0; dx < binning; ++dx )
+					{
+						sum += pixels[ offset + dx ];
+					}
+				}
+
+				binned[ y * binnedWidth + x ] = ( float ) ( sum * normalisation );
+			}
+		}
+
+		return new FloatProcessor( binnedWidth, binnedHeight, binned );
+	}
+
+	private static void close( ImageProcessorReader reader )
+	{
+		if ( reader == null ) return;
+
+		try
+		{
+			reader.close();
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
 
 }
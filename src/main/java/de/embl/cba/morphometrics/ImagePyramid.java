@@ -0,0 +1,129 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.embl.cba.morphometrics.Transforms.getScalingFactors;
+
+/**
+ * Lazily computed, cached isotropic resolution levels of one input image.
+ *
+ * A requested level is derived from the coarsest already existing level
+ * that is still at least as fine as the requested one
+ * (or from the input itself if there is no such level),
+ * such that repeated requests for the same or similar resolutions
+ * do not go back to full resolution.
+ *
+ * @param <T>
+ */
+public class ImagePyramid< T extends RealType< T > & NativeType< T > >
+{
+	private static final AtomicLong nextId = new AtomicLong();
+
+	private final long id;
+	private final RandomAccessibleInterval< T > input;
+	private final double[] inputCalibration;
+	private final TreeMap< Double, RandomAccessibleInterval< T > > levels;
+
+	/**
+	 * @param input the full resolution image
+	 * @param inputCalibration voxel size of the input (is copied)
+	 */
+	public ImagePyramid( RandomAccessibleInterval< T > input, double[] inputCalibration )
+	{
+		this.id = nextId.getAndIncrement();
+		this.input = input;
+		this.inputCalibration = inputCalibration.clone();
+		this.levels = new TreeMap<>();
+	}
+
+	/**
+	 * @return an id that is unique among all pyramids of this JVM, e.g. for keying cached outputs derived from the pyramid
+	 */
+	public long getId()
+	{
+		return id;
+	}
+
+	public RandomAccessibleInterval< T > getInput()
+	{
+		return input;
+	}
+
+	public double[] getInputCalibration()
+	{
+		return inputCalibration.clone();
+	}
+
+	/**
+	 * @param voxelSize isotropic voxel size of the requested level
+	 * @return the input at the requested isotropic voxel size
+	 */
+	public synchronized RandomAccessibleInterval< T > get( double voxelSize )
+	{
+		RandomAccessibleInterval< T > level = levels.get( voxelSize );
+
+		if ( level != null ) return level;
+
+		final Map.Entry< Double, RandomAccessibleInterval< T > > finerLevel = levels.floorEntry( voxelSize );
+
+		if ( finerLevel == null )
+		{
+			level = Algorithms.createIsotropicArrayImg( input, getScalingFactors( inputCalibration, voxelSize ) );
+		}
+		else
+		{
+			final double[] finerLevelCalibration = Utils.get3dDoubleArray( finerLevel.getKey() );
+			level = Algorithms.createIsotropicArrayImg( finerLevel.getValue(), getScalingFactors( finerLevelCalibration, voxelSize ) );
+		}
+
+		levels.put( voxelSize, level );
+
+		return level;
+	}
+
+	/**
+	 * Power-of-two levels start at the largest input voxel size,
+	 * i.e. level 0 is the coarsest isotropic image that does not up-sample any axis,
+	 * and each further level halves the resolution of the previous one.
+	 *
+	 * @param level
+	 * @return the input at an isotropic voxel size of getPowerOfTwoLevelVoxelSize( level )
+	 */
+	public synchronized RandomAccessibleInterval< T > getPowerOfTwoLevel( int level )
+	{
+		for ( int l = 0; l < level; ++l )
+		{
+			get( getPowerOfTwoLevelVoxelSize( l ) );
+		}
+
+		return get( getPowerOfTwoLevelVoxelSize( level ) );
+	}
+
+	public double getPowerOfTwoLevelVoxelSize( int level )
+	{
+		double maximalInputVoxelSize = 0;
+
+		for ( int d = 0; d < inputCalibration.length; ++d )
+		{
+			maximalInputVoxelSize = Math.max( maximalInputVoxelSize, inputCalibration[ d ] );
+		}
+
+		return maximalInputVoxelSize * Math.pow( 2, level );
+	}
+
+	public synchronized boolean contains( double voxelSize )
+	{
+		return levels.containsKey( voxelSize );
+	}
+
+	public synchronized void clear()
+	{
+		levels.clear();
+	}
+}
@@ -0,0 +1,553 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.stream.IntStream;
+
+/**
+ * Voxel loops of the hot helpers, specialised to the primitive storage of the image.
+ *
+ * Each operation inspects the image once and then runs a loop over the flat byte[], short[], float[], double[]
+ * or packed bit array, such that every loop only ever sees one primitive type and stays monomorphic.
+ * Signed and unsigned integer types share one loop, which converts the elements with a mask
+ * (0xFF or 0xFFFF for unsigned, -1, i.e. sign extension only, for signed types).
+ * Images that are not backed by one of these flat arrays are processed voxel by voxel via RealType.
+ */
+public class Kernels
+{
+	static final int WORDS_PER_BLOCK = 1024;
+
+	private enum ArrayType { BYTES, SHORTS, FLOATS, DOUBLES, BITS }
+
+	/**
+	 * Flat storage of an image, in X-fastest order.
+	 */
+	private static class FlatImage
+	{
+		final ArrayType arrayType;
+		final Object values;
+		final int valueMask;
+		final int numVoxels;
+
+		FlatImage( ArrayType arrayType, Object values, int valueMask, int numVoxels )
+		{
+			this.arrayType = arrayType;
+			this.values = values;
+			this.valueMask = valueMask;
+			this.numVoxels = numVoxels;
+		}
+	}
+
+	/**
+	 * @return the maximum value, or Double.MIN_VALUE if no value is larger than that
+	 */
+	public static < T extends RealType< T > > double getMaximumValue( RandomAccessibleInterval< T > rai )
+	{
+		final FlatImage image = getFlatImage( rai );
+
+		if ( image == null )
+		{
+			double maxValue = Double.MIN_VALUE;
+
+			for ( T t : Views.iterable( rai ) )
+			{
+				final double value = t.getRealDouble();
+				if ( value > maxValue ) maxValue = value;
+			}
+
+			return maxValue;
+		}
+
+		final double maxValue;
+
+		switch ( image.arrayType )
+		{
+			case BYTES: maxValue = max( ( byte[] ) image.values, image.valueMask, image.numVoxels ); break;
+			case SHORTS: maxValue = max( ( short[] ) image.values, image.valueMask, image.numVoxels ); break;
+			case FLOATS: maxValue = max( ( float[] ) image.values, image.numVoxels ); break;
+			case DOUBLES: maxValue = max( ( double[] ) image.values, image.numVoxels ); break;
+			default: maxValue = getFirstSetBit( ( long[] ) image.values, image.numVoxels ) >= 0 ? 1 : 0;
+		}
+
+		return Math.max( maxValue, Double.MIN_VALUE );
+	}
+
+	/**
+	 * @return the position of the first voxel, in flat iteration order, with the maximum value,
+	 * or null if no value is positive
+	 */
+	public static < T extends RealType< T > > long[] findMaximumPosition( RandomAccessibleInterval< T > rai )
+	{
+		final FlatImage image = getFlatImage( rai );
+
+		if ( image == null )
+		{
+			final Cursor< T > cursor = Views.flatIterable( rai ).localizingCursor();
+
+			double maxValue = Double.MIN_VALUE;
+			long[] maxPosition = null;
+
+			while ( cursor.hasNext() )
+			{
+				final double value = cursor.next().getRealDouble();
+
+				if ( value > maxValue )
+				{
+					maxValue = value;
+					if ( maxPosition == null ) maxPosition = new long[ rai.numDimensions() ];
+					cursor.localize( maxPosition );
+				}
+			}
+
+			return maxPosition;
+		}
+
+		// for the flat types, values larger than Double.MIN_VALUE are exactly the positive values
+		final int index;
+
+		switch ( image.arrayType )
+		{
+			case BYTES: index = argMax( ( byte[] ) image.values, image.valueMask, image.numVoxels ); break;
+			case SHORTS: index = argMax( ( short[] ) image.values, image.valueMask, image.numVoxels ); break;
+			case FLOATS: index = argMax( ( float[] ) image.values, image.numVoxels ); break;
+			case DOUBLES: index = argMax( ( double[] ) image.values, image.numVoxels ); break;
+			default: index = getFirstSetBit( ( long[] ) image.values, image.numVoxels );
+		}
+
+		if ( index < 0 ) return null;
+
+		final long[] position = new long[ rai.numDimensions() ];
+
+		long remainder = index;
+		for ( int d = 0; d < position.length; ++d )
+		{
+			position[ d ] = rai.min( d ) + remainder % rai.dimension( d );
+			remainder /= rai.dimension( d );
+		}
+
+		return position;
+	}
+
+	public static < T extends RealType< T > > double computeAverage( RandomAccessibleInterval< T > rai )
+	{
+		final FlatImage image = getFlatImage( rai );
+
+		if ( image == null )
+		{
+			double sum = 0;
+
+			for ( T t : Views.iterable( rai ) ) sum += t.getRealDouble();
+
+			return sum / Intervals.numElements( rai );
+		}
+
+		final double sum;
+
+		switch ( image.arrayType )
+		{
+			case BYTES: sum = sum( ( byte[] ) image.values, image.valueMask, image.numVoxels ); break;
+			case SHORTS: sum = sum( ( short[] ) image.values, image.valueMask, image.numVoxels ); break;
+			case FLOATS: sum = sum( ( float[] ) image.values, image.numVoxels ); break;
+			case DOUBLES: sum = sum( ( double[] ) image.values, image.numVoxels ); break;
+			default: sum = countSetBits( ( long[] ) image.values, null, image.numVoxels );
+		}
+
+		return sum / image.numVoxels;
+	}
+
+	/**
+	 * @return the average of the voxels within the mask; NaN if the mask is empty
+	 */
+	public static < T extends RealType< T > > double computeAverage( RandomAccessibleInterval< T > rai, RandomAccessibleInterval< BitType > mask )
+	{
+		final FlatImage image = getFlatImage( rai );
+		final long[] maskBits = getAlignedMaskBits( mask, rai, image );
+
+		if ( maskBits == null )
+		{
+			final Cursor< BitType > cursor = Views.iterable( mask ).localizingCursor();
+			final RandomAccess< T > randomAccess = rai.randomAccess();
+
+			double sum = 0;
+			long n = 0;
+
+			while ( cursor.hasNext() )
+			{
+				if ( cursor.next().get() )
+				{
+					randomAccess.setPosition( cursor );
+					sum += randomAccess.get().getRealDouble();
+					++n;
+				}
+			}
+
+			return sum / n;
+		}
+
+		final long n = countSetBits( maskBits, null, image.numVoxels );
+		final double sum;
+
+		switch ( image.arrayType )
+		{
+			case BYTES: sum = sum( ( byte[] ) image.values, image.valueMask, maskBits, image.numVoxels ); break;
+			case SHORTS: sum = sum( ( short[] ) image.values, image.valueMask, maskBits, image.numVoxels ); break;
+			case FLOATS: sum = sum( ( float[] ) image.values, maskBits, image.numVoxels ); break;
+			case DOUBLES: sum = sum( ( double[] ) image.values, maskBits, image.numVoxels ); break;
+			default: sum = countSetBits( ( long[] ) image.values, maskBits, image.numVoxels );
+		}
+
+		return sum / n;
+	}
+
+	/**
+	 * Sets all voxels outside the mask to zero.
+	 */
+	public static < T extends RealType< T > > void applyMask( RandomAccessibleInterval< T > rai, RandomAccessibleInterval< BitType > mask )
+	{
+		final FlatImage image = getFlatImage( rai );
+		final long[] maskBits = getAlignedMaskBits( mask, rai, image );
+
+		if ( maskBits == null )
+		{
+			LoopBuilder.setImages( rai, mask ).forEachPixel( ( i, m ) -> { if ( ! m.get() ) i.setZero(); } );
+			return;
+		}
+
+		switch ( image.arrayType )
+		{
+			case BYTES: applyMask( ( byte[] ) image.values, maskBits, image.numVoxels ); break;
+			case SHORTS: applyMask( ( short[] ) image.values, maskBits, image.numVoxels ); break;
+			case FLOATS: applyMask( ( float[] ) image.values, maskBits, image.numVoxels ); break;
+			case DOUBLES: applyMask( ( double[] ) image.values, maskBits, image.numVoxels ); break;
+			default:
+				final long[] bits = ( long[] ) image.values;
+				for ( int k = 0; k < bits.length; ++k ) bits[ k ] &= maskBits[ k ];
+		}
+	}
+
+	/**
+	 * @return packed bits, in X-fastest order, of the voxels whose value is larger than the threshold
+	 */
+	public static < T extends RealType< T > > long[] threshold( RandomAccessibleInterval< T > rai, double threshold )
+	{
+		final int numVoxels = ( int ) Intervals.numElements( rai );
+		final long[] bits = new long[ ( numVoxels + 63 ) / 64 ];
+
+		final FlatImage image = getFlatImage( rai );
+
+		if ( image == null )
+		{
+			final Cursor< T > cursor = Views.flatIterable( rai ).cursor();
+
+			for ( int i = 0; i < numVoxels; ++i )
+			{
+				if ( cursor.next().getRealDouble() > threshold ) bits[ i >>> 6 ] |= 1L << ( i & 63 );
+			}
+
+			return bits;
+		}
+
+		// for integer values, v > threshold is equivalent to v > floor( threshold ); the cast saturates
+		final int integerThreshold = ( int ) Math.floor( threshold );
+
+		switch ( image.arrayType )
+		{
+			case BYTES: threshold( ( byte[] ) image.values, image.valueMask, integerThreshold, bits, numVoxels ); break;
+			case SHORTS: threshold( ( short[] ) image.values, image.valueMask, integerThreshold, bits, numVoxels ); break;
+			case FLOATS: threshold( ( float[] ) image.values, threshold, bits, numVoxels ); break;
+			case DOUBLES: threshold( ( double[] ) image.values, threshold, bits, numVoxels ); break;
+			default:
+				final long[] values = ( long[] ) image.values;
+				for ( int k = 0; k < bits.length; ++k ) bits[ k ] = threshold < 0 ? -1L : threshold < 1 ? values[ k ] : 0L;
+				if ( ( numVoxels & 63 ) != 0 ) bits[ bits.length - 1 ] &= ( 1L << ( numVoxels & 63 ) ) - 1;
+		}
+
+		return bits;
+	}
+
+	private static FlatImage getFlatImage( RandomAccessibleInterval< ? > rai )
+	{
+		final Object values = FlatArrays.getPrimitiveArray( rai );
+
+		if ( values == null ) return null;
+
+		final Object type = Util.getTypeFromInterval( rai );
+		final int numVoxels = ( int ) Intervals.numElements( rai );
+
+		if ( type instanceof UnsignedByteType && values instanceof byte[] ) return new FlatImage( ArrayType.BYTES, values, 0xFF, numVoxels );
+		if ( type instanceof ByteType && values instanceof byte[] ) return new FlatImage( ArrayType.BYTES, values, -1, numVoxels );
+		if ( type instanceof UnsignedShortType && values instanceof short[] ) return new FlatImage( ArrayType.SHORTS, values, 0xFFFF, numVoxels );
+		if ( type instanceof ShortType && values instanceof short[] ) return new FlatImage( ArrayType.SHORTS, values, -1, numVoxels );
+		if ( type instanceof FloatType && values instanceof float[] ) return new FlatImage( ArrayType.FLOATS, values, 0, numVoxels );
+		if ( type instanceof DoubleType && values instanceof double[] ) return new FlatImage( ArrayType.DOUBLES, values, 0, numVoxels );
+		if ( type instanceof BitType && values instanceof long[] ) return new FlatImage( ArrayType.BITS, values, 0, numVoxels );
+
+		return null;
+	}
+
+	/**
+	 * @return the packed bits of the mask if both the image and the mask are flat and cover the same interval,
+	 * null otherwise
+	 */
+	private static long[] getAlignedMaskBits( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< ? > rai, FlatImage image )
+	{
+		if ( image == null || ! Intervals.equals( mask, rai ) ) return null;
+
+		final Object maskBits = FlatArrays.getPrimitiveArray( mask );
+
+		return maskBits instanceof long[] ? ( long[] ) maskBits : null;
+	}
+
+	private static boolean isSet( long[] bits, int i )
+	{
+		return ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) != 0;
+	}
+
+	private static int getFirstSetBit( long[] bits, int n )
+	{
+		for ( int k = 0; k < bits.length; ++k )
+		{
+			if ( bits[ k ] != 0 )
+			{
+				final int i = ( k << 6 ) + Long.numberOfTrailingZeros( bits[ k ] );
+				return i < n ? i : -1;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the number of set bits, within the mask if it is not null
+	 */
+	private static long countSetBits( long[] bits, long[] mask, int n )
+	{
+		long count = 0;
+
+		for ( int k = 0; k < ( n + 63 ) / 64; ++k )
+		{
+			long word = mask == null ? bits[ k ] : bits[ k ] & mask[ k ];
+			if ( k == n >>> 6 ) word &= ( 1L << ( n & 63 ) ) - 1;
+			count += Long.bitCount( word );
+		}
+
+		return count;
+	}
+
+	// maximum
+
+	private static int max( byte[] values, int valueMask, int n )
+	{
+		int max = Integer.MIN_VALUE;
+		for ( int i = 0; i < n; ++i ) max = Math.max( max, values[ i ] & valueMask );
+		return max;
+	}
+
+	private static int max( short[] values, int valueMask, int n )
+	{
+		int max = Integer.MIN_VALUE;
+		for ( int i = 0; i < n; ++i ) max = Math.max( max, values[ i ] & valueMask );
+		return max;
+	}
+
+	private static double max( float[] values, int n )
+	{
+		float max = - Float.MAX_VALUE;
+		for ( int i = 0; i < n; ++i ) if ( values[ i ] > max ) max = values[ i ];
+		return max;
+	}
+
+	private static double max( double[] values, int n )
+	{
+		double max = - Double.MAX_VALUE;
+		for ( int i = 0; i < n; ++i ) if ( values[ i ] > max ) max = values[ i ];
+		return max;
+	}
+
+	// index of the first maximum among the positive values
+
+	private static int argMax( byte[] values, int valueMask, int n )
+	{
+		int max = 0, index = -1;
+		for ( int i = 0; i < n; ++i ) if ( ( values[ i ] & valueMask ) > max ) { max = values[ i ] & valueMask; index = i; }
+		return index;
+	}
+
+	private static int argMax( short[] values, int valueMask, int n )
+	{
+		int max = 0, index = -1;
+		for ( int i = 0; i < n; ++i ) if ( ( values[ i ] & valueMask ) > max ) { max = values[ i ] & valueMask; index = i; }
+		return index;
+	}
+
+	private static int argMax( float[] values, int n )
+	{
+		float max = 0;
+		int index = -1;
+		for ( int i = 0; i < n; ++i ) if ( values[ i ] > max ) { max = values[ i ]; index = i; }
+		return index;
+	}
+
+	private static int argMax( double[] values, int n )
+	{
+		double max = Double.MIN_VALUE;
+		int index = -1;
+		for ( int i = 0; i < n; ++i ) if ( values[ i ] > max ) { max = values[ i ]; index = i; }
+		return index;
+	}
+
+	// sum
+
+	private static double sum( byte[] values, int valueMask, int n )
+	{
+		long sum = 0;
+		for ( int i = 0; i < n; ++i ) sum += values[ i ] & valueMask;
+		return sum;
+	}
+
+	private static double sum( short[] values, int valueMask, int n )
+	{
+		long sum = 0;
+		for ( int i = 0; i < n; ++i ) sum += values[ i ] & valueMask;
+		return sum;
+	}
+
+	private static double sum( float[] values, int n )
+	{
+		double sum = 0;
+		for ( int i = 0; i < n; ++i ) sum += values[ i ];
+		return sum;
+	}
+
+	private static double sum( double[] values, int n )
+	{
+		double sum = 0;
+		for ( int i = 0; i < n; ++i ) sum += values[ i ];
+		return sum;
+	}
+
+	// sum within mask
+
+	private static double sum( byte[] values, int valueMask, long[] mask, int n )
+	{
+		long sum = 0;
+		for ( int i = 0; i < n; ++i ) if ( isSet( mask, i ) ) sum += values[ i ] & valueMask;
+		return sum;
+	}
+
+	private static double sum( short[] values, int valueMask, long[] mask, int n )
+	{
+		long sum = 0;
+		for ( int i = 0; i < n; ++i ) if ( isSet( mask, i ) ) sum += values[ i ] & valueMask;
+		return sum;
+	}
+
+	private static double sum( float[] values, long[] mask, int n )
+	{
+		double sum = 0;
+		for ( int i = 0; i < n; ++i ) if ( isSet( mask, i ) ) sum += values[ i ];
+		return sum;
+	}
+
+	private static double sum( double[] values, long[] mask, int n )
+	{
+		double sum = 0;
+		for ( int i = 0; i < n; ++i ) if ( isSet( mask, i ) ) sum += values[ i ];
+		return sum;
+	}
+
+	// masking
+
+	private static void applyMask( byte[] values, long[] mask, int n )
+	{
+		for ( int i = 0; i < n; ++i ) if ( ! isSet( mask, i ) ) values[ i ] = 0;
+	}
+
+	private static void applyMask( short[] values, long[] mask, int n )
+	{
+		for ( int i = 0; i < n; ++i ) if ( ! isSet( mask, i ) ) values[ i ] = 0;
+	}
+
+	private static void applyMask( float[] values, long[] mask, int n )
+	{
+		for ( int i = 0; i < n; ++i ) if ( ! isSet( mask, i ) ) values[ i ] = 0;
+	}
+
+	private static void applyMask( double[] values, long[] mask, int n )
+	{
+		for ( int i = 0; i < n; ++i ) if ( ! isSet( mask, i ) ) values[ i ] = 0;
+	}
+
+	// thresholding, in parallel over blocks of words
+
+	private static void threshold( byte[] values, int valueMask, int threshold, long[] bits, int n )
+	{
+		IntStream.range( 0, getNumBlocks( bits ) ).parallel().forEach( block ->
+		{
+			for ( int k = block * WORDS_PER_BLOCK, lastWord = Math.min( bits.length, k + WORDS_PER_BLOCK ); k < lastWord; ++k )
+			{
+				long word = 0;
+				for ( int i = k << 6, end = Math.min( n, i + 64 ); i < end; ++i ) if ( ( values[ i ] & valueMask ) > threshold ) word |= 1L << ( i & 63 );
+				bits[ k ] = word;
+			}
+		} );
+	}
+
+	private static void threshold( short[] values, int valueMask, int threshold, long[] bits, int n )
+	{
+		IntStream.range( 0, getNumBlocks( bits ) ).parallel().forEach( block ->
+		{
+			for ( int k = block * WORDS_PER_BLOCK, lastWord = Math.min( bits.length, k + WORDS_PER_BLOCK ); k < lastWord; ++k )
+			{
+				long word = 0;
+				for ( int i = k << 6, end = Math.min( n, i + 64 ); i < end; ++i ) if ( ( values[ i ] & valueMask ) > threshold ) word |= 1L << ( i & 63 );
+				bits[ k ] = word;
+			}
+		} );
+	}
+
+	private static void threshold( float[] values, double threshold, long[] bits, int n )
+	{
+		IntStream.range( 0, getNumBlocks( bits ) ).parallel().forEach( block ->
+		{
+			for ( int k = block * WORDS_PER_BLOCK, lastWord = Math.min( bits.length, k + WORDS_PER_BLOCK ); k < lastWord; ++k )
+			{
+				long word = 0;
+				for ( int i = k << 6, end = Math.min( n, i + 64 ); i < end; ++i ) if ( values[ i ] > threshold ) word |= 1L << ( i & 63 );
+				bits[ k ] = word;
+			}
+		} );
+	}
+
+	private static void threshold( double[] values, double threshold, long[] bits, int n )
+	{
+		IntStream.range( 0, getNumBlocks( bits ) ).parallel().forEach( block ->
+		{
+			for ( int k = block * WORDS_PER_BLOCK, lastWord = Math.min( bits.length, k + WORDS_PER_BLOCK ); k < lastWord; ++k )
+			{
+				long word = 0;
+				for ( int i = k << 6, end = Math.min( n, i + 64 ); i < end; ++i ) if ( values[ i ] > threshold ) word |= 1L << ( i & 63 );
+				bits[ k ] = word;
+			}
+		} );
+	}
+
+	static int getNumBlocks( long[] bits )
+	{
+		return ( bits.length + WORDS_PER_BLOCK - 1 ) / WORDS_PER_BLOCK;
+	}
+}
@@ -0,0 +1,33 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.IntType;
+
+/**
+ * Connected components of a mask, with statistics per label.
+ *
+ * Labels run from 1 to numLabels, 0 is background.
+ * All arrays are indexed by label; their entries at index 0 are unused.
+ * Coordinates are in the coordinate system of the mask.
+ */
+public class LabeledComponents
+{
+	public RandomAccessibleInterval< IntType > labelImg;
+	public int numLabels;
+	public long[] sizes;
+	public long[][] boundingBoxMins;
+	public long[][] boundingBoxMaxs;
+	public double[][] centroids;
+
+	public int getLargestLabel()
+	{
+		int largestLabel = 0;
+
+		for ( int label = 1; label <= numLabels; ++label )
+		{
+			if ( sizes[ label ] > sizes[ largestLabel ] ) largestLabel = label;
+		}
+
+		return largestLabel;
+	}
+}
@@ -0,0 +1,213 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Extraction of single objects from 3D label images and masks,
+ * without labeling all objects.
+ *
+ * Voxels are connected to all their 26 neighbours.
+ */
+public class ObjectExtraction
+{
+	/**
+	 * Flood fills the voxels that carry the same label as the given position.
+	 *
+	 * @param labelImg
+	 * @param position
+	 * @return mask of the object at the position
+	 * @throws IllegalArgumentException if the position is background (label 0)
+	 */
+	public static RandomAccessibleInterval< BitType > extractObjectAt( RandomAccessibleInterval< IntType > labelImg, long[] position )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( labelImg );
+		final int[] labels = FlatArrays.getInts( labelImg );
+		final long[] objectBits = new long[ ( labels.length + 63 ) / 64 ];
+
+		final int start = ( int ) ( position[ X ] - labelImg.min( X ) )
+				+ dimensions[ X ] * ( int ) ( ( position[ Y ] - labelImg.min( Y ) )
+				+ dimensions[ Y ] * ( position[ Z ] - labelImg.min( Z ) ) );
+
+		final int label = labels[ start ];
+
+		if ( label == 0 ) throw new IllegalArgumentException( "No object at position " + Arrays.toString( position ) );
+
+		floodFill( labels, label, start, objectBits, dimensions );
+
+		return createMask( objectBits, dimensions, labelImg );
+	}
+
+	/**
+	 * Finds the largest connected component in a single pass over the mask,
+	 * using a union-find forest with component sizes stored at the roots.
+	 *
+	 * @param mask
+	 * @return mask of the largest connected component; empty if the mask is empty
+	 */
+	public static RandomAccessibleInterval< BitType > extractLargestObject( RandomAccessibleInterval< BitType > mask )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+		final long[] bits = FlatArrays.getPackedBits( mask );
+		final int numVoxels = dimensions[ X ] * dimensions[ Y ] * dimensions[ Z ];
+
+		// negative values are component sizes of roots, non-negative values are parents
+		final int[] parents = new int[ numVoxels ];
+
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int planeSize = width * height;
+
+		int largestRoot = -1;
+		int largestSize = 0;
+
+		for ( int z = 0, i = 0; z < dimensions[ Z ]; ++z )
+		{
+			for ( int y = 0; y < height; ++y )
+			{
+				for ( int x = 0; x < width; ++x, ++i )
+				{
+					if ( ! isSet( bits, i ) ) continue;
+
+					parents[ i ] = -1;
+					int root = i;
+
+					// neighbours that have already been visited
+					for ( int nz = Math.max( 0, z - 1 ); nz <= z; ++nz )
+					{
+						for ( int ny = Math.max( 0, y - 1 ); ny <= Math.min( height - 1, y + 1 ); ++ny )
+						{
+							if ( nz == z && ny > y ) break;
+
+							for ( int nx = Math.max( 0, x - 1 ); nx <= Math.min( width - 1, x + 1 ); ++nx )
+							{
+								final int j = nz * planeSize + ny * width + nx;
+
+								if ( j >= i ) break;
+
+								if ( isSet( bits, j ) ) root = union( parents, root, find( parents, j ) );
+							}
+						}
+					}
+
+					if ( - parents[ root ] > largestSize )
+					{
+						largestSize = - parents[ root ];
+						largestRoot = root;
+					}
+				}
+			}
+		}
+
+		final long[] objectBits = new long[ bits.length ];
+
+		if ( largestRoot >= 0 )
+		{
+			// the largest root can have been merged into another, even larger, component later on
+			largestRoot = find( parents, largestRoot );
+
+			for ( int i = 0; i < numVoxels; ++i )
+			{
+				if ( isSet( bits, i ) && find( parents, i ) == largestRoot ) objectBits[ i >>> 6 ] |= 1L << ( i & 63 );
+			}
+		}
+
+		return createMask( objectBits, dimensions, mask );
+	}
+
+	private static void floodFill( int[] labels, int label, int start, long[] objectBits, int[] dimensions )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int planeSize = width * height;
+
+		int[] stack = new int[ 1024 ];
+		int stackSize = 0;
+
+		objectBits[ start >>> 6 ] |= 1L << ( start & 63 );
+		stack[ stackSize++ ] = start;
+
+		while ( stackSize > 0 )
+		{
+			final int i = stack[ --stackSize ];
+			final int x = i % width;
+			final int y = ( i / width ) % height;
+			final int z = i / planeSize;
+
+			for ( int nz = Math.max( 0, z - 1 ); nz <= Math.min( dimensions[ Z ] - 1, z + 1 ); ++nz )
+			{
+				for ( int ny = Math.max( 0, y - 1 ); ny <= Math.min( height - 1, y + 1 ); ++ny )
+				{
+					for ( int nx = Math.max( 0, x - 1 ); nx <= Math.min( width - 1, x + 1 ); ++nx )
+					{
+						final int j = nz * planeSize + ny * width + nx;
+
+						if ( labels[ j ] != label || isSet( objectBits, j ) ) continue;
+
+						objectBits[ j >>> 6 ] |= 1L << ( j & 63 );
+
+						if ( stackSize == stack.length ) stack = Arrays.copyOf( stack, 2 * stack.length );
+
+						stack[ stackSize++ ] = j;
+					}
+				}
+			}
+		}
+	}
+
+	private static int find( int[] parents, int i )
+	{
+		while ( parents[ i ] >= 0 )
+		{
+			// path halving
+			if ( parents[ parents[ i ] ] >= 0 ) parents[ i ] = parents[ parents[ i ] ];
+			i = parents[ i ];
+		}
+
+		return i;
+	}
+
+	/**
+	 * @return the root of the merged component
+	 */
+	private static int union( int[] parents, int rootA, int rootB )
+	{
+		if ( rootA == rootB ) return rootA;
+
+		// attach the smaller to the larger component
+		if ( parents[ rootA ] > parents[ rootB ] )
+		{
+			final int tmp = rootA;
+			rootA = rootB;
+			rootB = tmp;
+		}
+
+		parents[ rootA ] += parents[ rootB ];
+		parents[ rootB ] = rootA;
+
+		return rootA;
+	}
+
+	private static boolean isSet( long[] bits, int i )
+	{
+		return ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) != 0;
+	}
+
+	private static RandomAccessibleInterval< BitType > createMask( long[] bits, int[] dimensions, RandomAccessibleInterval< ? > template )
+	{
+		final RandomAccessibleInterval< BitType > mask = ArrayImgs.bits( new LongArray( bits ), dimensions[ X ], dimensions[ Y ], dimensions[ Z ] );
+
+		return Views.translate( mask, Intervals.minAsLongArray( template ) );
+	}
+}
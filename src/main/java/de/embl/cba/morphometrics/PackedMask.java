@@ -0,0 +1,147 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * 3D binary mask with each row along X packed into its own 64 bit words,
+ * such that rows can be processed word-wise, independently of each other.
+ *
+ * Bit x of row ( y, z ) is bit ( x & 63 ) of word getRowOffset( y, z ) + ( x >>> 6 ).
+ * Bits beyond the width are always zero.
+ */
+public class PackedMask
+{
+	public final int width;
+	public final int height;
+	public final int depth;
+	public final int wordsPerRow;
+	public final long[] words;
+
+	/**
+	 * Mask of the bits of the last word of a row that lie within the width.
+	 */
+	public final long lastWordMask;
+
+	public PackedMask( int width, int height, int depth )
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.wordsPerRow = ( width + 63 ) / 64;
+		this.words = new long[ wordsPerRow * height * depth ];
+		this.lastWordMask = ( width & 63 ) == 0 ? -1L : ( 1L << ( width & 63 ) ) - 1;
+	}
+
+	public static PackedMask fromMask( RandomAccessibleInterval< BitType > mask )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+		final long[] bits = FlatArrays.getPackedBits( mask );
+
+		final PackedMask packedMask = new PackedMask( dimensions[ X ], dimensions[ Y ], dimensions[ Z ] );
+
+		for ( int row = 0; row < packedMask.height * packedMask.depth; ++row )
+		{
+			final long rowStart = ( long ) row * packedMask.width;
+			final int offset = row * packedMask.wordsPerRow;
+
+			for ( int k = 0; k < packedMask.wordsPerRow; ++k )
+			{
+				packedMask.words[ offset + k ] = readWord( bits, rowStart + 64L * k );
+			}
+
+			packedMask.words[ offset + packedMask.wordsPerRow - 1 ] &= packedMask.lastWordMask;
+		}
+
+		return packedMask;
+	}
+
+	/**
+	 * @param template interval of the returned mask
+	 * @return the mask as BitType ArrayImg, positioned at the interval of the template
+	 */
+	public RandomAccessibleInterval< BitType > toMask( RandomAccessibleInterval< ? > template )
+	{
+		final long numVoxels = ( long ) width * height * depth;
+		final long[] bits = new long[ ( int ) ( ( numVoxels + 63 ) / 64 ) ];
+
+		for ( int row = 0; row < height * depth; ++row )
+		{
+			final long rowStart = ( long ) row * width;
+			final int offset = row * wordsPerRow;
+
+			for ( int k = 0; k < wordsPerRow; ++k )
+			{
+				writeWord( bits, rowStart + 64L * k, words[ offset + k ] );
+			}
+		}
+
+		final RandomAccessibleInterval< BitType > mask = ArrayImgs.bits( new LongArray( bits ), width, height, depth );
+
+		return Views.translate( mask, Intervals.minAsLongArray( template ) );
+	}
+
+	public int getRowOffset( int y, int z )
+	{
+		return ( z * height + y ) * wordsPerRow;
+	}
+
+	public PackedMask copy()
+	{
+		final PackedMask copy = new PackedMask( width, height, depth );
+		System.arraycopy( words, 0, copy.words, 0, words.length );
+		return copy;
+	}
+
+	/**
+	 * Inverts all voxels within the image.
+	 */
+	public void invert()
+	{
+		for ( int offset = 0; offset < words.length; offset += wordsPerRow )
+		{
+			for ( int k = 0; k < wordsPerRow; ++k ) words[ offset + k ] = ~ words[ offset + k ];
+			words[ offset + wordsPerRow - 1 ] &= lastWordMask;
+		}
+	}
+
+	/**
+	 * @return the 64 bits starting at bit position
+	 */
+	private static long readWord( long[] bits, long position )
+	{
+		final int index = ( int ) ( position >>> 6 );
+		final int shift = ( int ) ( position & 63 );
+
+		if ( index >= bits.length ) return 0;
+
+		final long low = bits[ index ] >>> shift;
+
+		if ( shift == 0 || index + 1 >= bits.length ) return low;
+
+		return low | ( bits[ index + 1 ] << ( 64 - shift ) );
+	}
+
+	/**
+	 * Sets the bits of the word into the bits starting at position; does not clear any bits.
+	 */
+	private static void writeWord( long[] bits, long position, long word )
+	{
+		final int index = ( int ) ( position >>> 6 );
+		final int shift = ( int ) ( position & 63 );
+
+		if ( index >= bits.length ) return;
+
+		bits[ index ] |= word << shift;
+
+		if ( shift != 0 && index + 1 < bits.length ) bits[ index + 1 ] |= word >>> ( 64 - shift );
+	}
+}
@@ -0,0 +1,182 @@
+package de.embl.cba.morphometrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Loads the values for a list of paths in background threads, ahead of them being consumed.
+ *
+ * At most numPrefetched values are loaded ahead of the consumer.
+ * Loading of a further value only starts if the memory of the values that are
+ * loaded but not yet consumed, plus the size of the largest value seen so far,
+ * fits into the memory budget. Values are started to be loaded in the order of the paths.
+ *
+ * A value is considered consumed once the following value is requested by {@link #next()}.
+ *
+ * @param <V>
+ */
+public class Prefetcher< V >
+{
+	private final List< String > paths;
+	private final Function< String, V > loader;
+	private final ToLongFunction< V > sizeInBytes;
+	private final long memoryBudgetInBytes;
+	private final int numPrefetched;
+	private final ExecutorService executorService;
+	private final List< Future< V > > futures;
+	private final long[] sizes;
+	private final Object lock = new Object();
+
+	private int nextIndex;
+	private int nextIndexToLoad;
+	private long reservedBytes;
+	private long maxSizeInBytes;
+
+	/**
+	 * @param paths
+	 * @param loader returns the value for a path, or null if it could not be loaded
+	 * @param sizeInBytes memory occupied by a loaded value
+	 * @param numPrefetched number of values that are loaded ahead of the consumer
+	 * @param memoryBudgetInBytes maximal memory of loaded but not yet consumed values
+	 */
+	public Prefetcher( List< String > paths,
+					   Function< String, V > loader,
+					   ToLongFunction< V > sizeInBytes,
+					   int numPrefetched,
+					   long memoryBudgetInBytes )
+	{
+		this.paths = paths;
+		this.loader = loader;
+		this.sizeInBytes = sizeInBytes;
+		this.numPrefetched = Math.max( 1, numPrefetched );
+		this.memoryBudgetInBytes = memoryBudgetInBytes;
+		this.sizes = new long[ paths.size() ];
+		this.futures = new ArrayList<>();
+
+		this.executorService = Executors.newFixedThreadPool( this.numPrefetched, runnable -> {
+			final Thread thread = new Thread( runnable, "prefetcher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		for ( int i = 0; i < Math.min( this.numPrefetched, paths.size() ); ++i )
+		{
+			submit( i );
+		}
+	}
+
+	public boolean hasNext()
+	{
+		return nextIndex < paths.size();
+	}
+
+	/**
+	 * @return the path of the value that will be returned by the next call to {@link #next()}
+	 */
+	public String nextPath()
+	{
+		return paths.get( nextIndex );
+	}
+
+	/**
+	 * Blocks until the next value is loaded.
+	 *
+	 * @return the next value, or null if it could not be loaded
+	 */
+	public V next()
+	{
+		if ( nextIndex > 0 ) release( nextIndex - 1 );
+
+		if ( nextIndex + numPrefetched < paths.size() && nextIndex + numPrefetched >= futures.size() )
+		{
+			submit( nextIndex + numPrefetched );
+		}
+
+		final Future< V > future = futures.get( nextIndex++ );
+
+		try
+		{
+			return future.get();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch ( ExecutionException e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public void close()
+	{
+		executorService.shutdownNow();
+	}
+
+	private void submit( int index )
+	{
+		futures.add( executorService.submit( () -> load( index ) ) );
+	}
+
+	private V load( int index ) throws InterruptedException
+	{
+		final long reservation;
+
+		synchronized ( lock )
+		{
+			while ( index != nextIndexToLoad || ! fitsIntoMemoryBudget( maxSizeInBytes ) )
+			{
+				lock.wait();
+			}
+
+			reservation = maxSizeInBytes;
+			reservedBytes += reservation;
+			nextIndexToLoad++;
+			lock.notifyAll();
+		}
+
+		V value = null;
+
+		try
+		{
+			value = loader.apply( paths.get( index ) );
+			return value;
+		}
+		finally
+		{
+			final long size = value == null ? 0 : sizeInBytes.applyAsLong( value );
+
+			synchronized ( lock )
+			{
+				sizes[ index ] = size;
+				reservedBytes += size - reservation;
+				maxSizeInBytes = Math.max( maxSizeInBytes, size );
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private boolean fitsIntoMemoryBudget( long numBytes )
+	{
+		// always allow loading if nothing else is held, such that a single large value cannot block
+		return reservedBytes == 0 || reservedBytes + numBytes <= memoryBudgetInBytes;
+	}
+
+	private void release( int index )
+	{
+		synchronized ( lock )
+		{
+			reservedBytes -= sizes[ index ];
+			sizes[ index ] = 0;
+			lock.notifyAll();
+		}
+	}
+}
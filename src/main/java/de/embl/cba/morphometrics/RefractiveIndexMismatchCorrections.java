@@ -1,6 +1,7 @@
 package de.embl.cba.morphometrics;
 
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -13,6 +14,8 @@ import static java.lang.Math.exp;
 
 public abstract class RefractiveIndexMismatchCorrections
 {
+	// planes used for the intensity offset (the background mode) of views
+	public static final int NUM_PLANES_FOR_INTENSITY_OFFSET = 16;
 
 
 	public static double getIntensityCorrectionFactorAlongZ( long z, double zScalingToMicrometer, double intensityDecayLengthInMicrometer )
@@ -101,6 +104,68 @@ public abstract class RefractiveIndexMismatchCorrections
 		return intensityCorrectedChannel;
 	}
 
+	/**
+	 * Same correction as {@link #createIntensityCorrectedImages}, but computed on the fly
+	 * while accessing the returned views, i.e. without copying the input.
+	 * This is useful for inputs that are too large to be copied, such as
+	 * {@link CachedBioFormatsImage}. The intensity offset is computed on a few evenly spaced planes,
+	 * such that the resampling is the only full pass over the input.
+	 */
+	public static <T extends RealType<T> & NativeType< T > >
+	RandomAccessibleInterval< T > createIntensityCorrectedViews( RandomAccessibleInterval< T > images, double zCalibration, double intensityDecayLength )
+	{
+		ArrayList< RandomAccessibleInterval< T > > correctedImages = new ArrayList<>(  );
+
+		long numChannels = images.dimension( 3 );
+
+		for ( long c = 0; c < numChannels; ++c )
+		{
+			final RandomAccessibleInterval< T > channel = Views.hyperSlice( images, 3, c );
+			correctedImages.add( createIntensityCorrectedChannelView( zCalibration, intensityDecayLength, channel ) );
+		}
+
+		return Views.stack( correctedImages );
+	}
+
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createIntensityCorrectedChannelView( double zCalibration, double intensityDecayLength, RandomAccessibleInterval< T > channel )
+	{
+		final double intensityOffset = getIntensityOffset( subsampleAlongZ( channel, NUM_PLANES_FOR_INTENSITY_OFFSET ) );
+
+		ArrayList< RandomAccessibleInterval< T > > correctedSlices = new ArrayList<>(  );
+
+		for ( long z = channel.min( Z ); z <= channel.max( Z ); ++z )
+		{
+			final double intensityCorrectionFactor = getIntensityCorrectionFactorAlongZ( z, zCalibration, intensityDecayLength );
+
+			correctedSlices.add( Converters.convert( Views.hyperSlice( channel, Z, z ), ( i, o ) ->
+					o.setReal( Math.max( 0.0, i.getRealDouble() - intensityOffset ) * intensityCorrectionFactor ),
+					Views.iterable( channel ).firstElement().createVariable() ) );
+		}
+
+		return Views.translate( Views.stack( correctedSlices ), 0, 0, channel.min( Z ) );
+	}
+
+	/**
+	 * @return at most numPlanes planes, evenly spaced along z
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > subsampleAlongZ( RandomAccessibleInterval< T > channel, int numPlanes )
+	{
+		final long numZ = channel.dimension( Z );
+
+		if ( numZ <= numPlanes ) return channel;
+
+		ArrayList< RandomAccessibleInterval< T > > planes = new ArrayList<>(  );
+
+		for ( int i = 0; i < numPlanes; ++i )
+		{
+			planes.add( Views.hyperSlice( channel, Z, channel.min( Z ) + i * ( numZ - 1 ) / ( numPlanes - 1 ) ) );
+		}
+
+		return Views.stack( planes );
+	}
+
 	public static < T extends RealType< T > & NativeType< T > > double getIntensityOffset( RandomAccessibleInterval< T > channel )
 	{
 		final IntensityHistogram intensityHistogram = new IntensityHistogram( channel, 65535, 5 );
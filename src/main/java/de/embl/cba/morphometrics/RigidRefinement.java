@@ -0,0 +1,429 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.XYZ;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Rigid refinement of a transform by maximising the normalised cross-correlation (NCC)
+ * between a moving image and a fixed reference image.
+ *
+ * At each level, from coarse to fine, the moving level is sampled in the grid of the fixed level
+ * through the current transform, composed with a rigid increment about the centre of the fixed level.
+ * The increment is optimised by gradient ascent with step halving, using the analytic gradient of the NCC
+ * with respect to the three rotation angles and the three translations.
+ * The sums of the metric and its gradient are accumulated in parallel over z-slabs of the fixed level.
+ *
+ * The number of metric evaluations per level is bounded by maxIterations.
+ */
+public class RigidRefinement
+{
+	public static final int NUM_PARAMETERS = 6;
+	public static final double INITIAL_STEP = 1.0; // fixed level voxels
+	public static final double MINIMAL_STEP = 0.05; // fixed level voxels
+
+	/**
+	 * Sums over the fixed level, per z-slab:
+	 * [ 0 ] sum of centred fixed times moving, [ 1 ] sum of moving, [ 2 ] sum of squared moving,
+	 * followed, per parameter, by the sums of fixed, moving, and one, times the derivative of moving.
+	 */
+	private static final int NUM_SUMS = 3 + 3 * NUM_PARAMETERS;
+
+	/**
+	 * @param moving pyramid of the moving image
+	 * @param fixed pyramid of the reference image
+	 * @param transform from moving input voxel coordinates to fixed input voxel coordinates
+	 * @param resolutions voxel sizes of the levels at which to refine, from coarse to fine
+	 * @param maxIterations maximal number of gradient steps per level
+	 * @return the refined transform from moving input voxel coordinates to fixed input voxel coordinates
+	 */
+	public static < S extends RealType< S > & NativeType< S >, T extends RealType< T > & NativeType< T > >
+	AffineTransform3D refine( ImagePyramid< S > moving, ImagePyramid< T > fixed, AffineTransform3D transform, double[] resolutions, int maxIterations )
+	{
+		final AffineTransform3D refined = transform.copy();
+
+		for ( double resolution : resolutions )
+		{
+			final AffineTransform3D fixedInputToLevel = Transforms.getScalingTransform( fixed.getInputCalibration(), resolution );
+
+			// from moving level voxel coordinates to fixed level voxel coordinates
+			final AffineTransform3D levelTransform = Transforms.getScalingTransform( moving.getInputCalibration(), resolution ).inverse()
+					.preConcatenate( refined )
+					.preConcatenate( fixedInputToLevel );
+
+			final Level level = new Level( moving.get( resolution ), fixed.get( resolution ), levelTransform.inverse() );
+
+			if ( level.fixedNorm == 0 )
+			{
+				Utils.log( "Reference is empty at " + resolution + " um, skipping this level." );
+				continue;
+			}
+
+			final AffineTransform3D increment = level.optimise( maxIterations );
+
+			Utils.log( "NCC at " + resolution + " um: " + level.initialMetric + " -> " + level.metric );
+
+			// the increment maps fixed level coordinates to the position at which the moving image is sampled
+			refined.preConcatenate( fixedInputToLevel )
+					.preConcatenate( increment.inverse() )
+					.preConcatenate( fixedInputToLevel.inverse() );
+		}
+
+		return refined;
+	}
+
+	/**
+	 * @param rotation rotation vector, in radians
+	 * @param translation
+	 * @param centre
+	 * @return rotation by the angle and around the axis of the rotation vector, about the centre, followed by the translation
+	 */
+	public static AffineTransform3D createRigidTransform( double[] rotation, double[] translation, double[] centre )
+	{
+		final double angle = Utils.vectorLength( rotation );
+
+		final double[][] matrix = new double[ 3 ][ 3 ];
+
+		for ( int d : XYZ ) matrix[ d ][ d ] = 1.0;
+
+		if ( angle > 0 )
+		{
+			final double[] k = new double[]{ rotation[ X ] / angle, rotation[ Y ] / angle, rotation[ Z ] / angle };
+			final double[][] cross = new double[][]{
+					{ 0, - k[ Z ], k[ Y ] },
+					{ k[ Z ], 0, - k[ X ] },
+					{ - k[ Y ], k[ X ], 0 } };
+
+			final double sin = Math.sin( angle );
+			final double cos = Math.cos( angle );
+
+			// Rodrigues: R = I + sin K + ( 1 - cos ) K^2
+			for ( int i : XYZ )
+			{
+				for ( int j : XYZ )
+				{
+					double crossSquared = 0;
+					for ( int l : XYZ ) crossSquared += cross[ i ][ l ] * cross[ l ][ j ];
+
+					matrix[ i ][ j ] += sin * cross[ i ][ j ] + ( 1 - cos ) * crossSquared;
+				}
+			}
+		}
+
+		final AffineTransform3D rigid = new AffineTransform3D();
+
+		for ( int i : XYZ )
+		{
+			double offset = centre[ i ] + translation[ i ];
+
+			for ( int j : XYZ )
+			{
+				rigid.set( matrix[ i ][ j ], i, j );
+				offset -= matrix[ i ][ j ] * centre[ j ];
+			}
+
+			rigid.set( offset, i, 3 );
+		}
+
+		return rigid;
+	}
+
+	private static class Level
+	{
+		final float[] moving;
+		final int[] movingDimensions;
+		final long[] movingMin;
+
+		final float[] centredFixed;
+		final int[] fixedDimensions;
+		final long[] fixedMin;
+		final double fixedNorm;
+
+		final AffineTransform3D fixedToMoving;
+		final double[] centre;
+		final double radius;
+
+		double initialMetric;
+		double metric;
+
+		< S extends RealType< S >, T extends RealType< T > >
+		Level( RandomAccessibleInterval< S > moving, RandomAccessibleInterval< T > fixed, AffineTransform3D fixedToMoving )
+		{
+			this.moving = FlatArrays.getFloats( moving );
+			this.movingDimensions = FlatArrays.getDimensions( moving );
+			this.movingMin = new long[]{ moving.min( X ), moving.min( Y ), moving.min( Z ) };
+
+			final float[] fixedValues = FlatArrays.getFloats( fixed );
+			this.fixedDimensions = FlatArrays.getDimensions( fixed );
+			this.fixedMin = new long[]{ fixed.min( X ), fixed.min( Y ), fixed.min( Z ) };
+
+			double mean = 0;
+			for ( float value : fixedValues ) mean += value;
+			mean /= fixedValues.length;
+
+			// copy, as the values may be the storage of the pyramid level
+			this.centredFixed = new float[ fixedValues.length ];
+			double sumOfSquares = 0;
+			for ( int i = 0; i < fixedValues.length; ++i )
+			{
+				centredFixed[ i ] = ( float ) ( fixedValues[ i ] - mean );
+				sumOfSquares += centredFixed[ i ] * centredFixed[ i ];
+			}
+			this.fixedNorm = Math.sqrt( sumOfSquares );
+
+			this.fixedToMoving = fixedToMoving;
+
+			this.centre = new double[ 3 ];
+			for ( int d : XYZ ) centre[ d ] = fixedMin[ d ] + ( fixedDimensions[ d ] - 1 ) / 2.0;
+
+			// rotation parameters are scaled by this radius, such that all parameters are in voxels
+			this.radius = Math.max( 1.0, fixedDimensions[ X ] / 2.0 );
+		}
+
+		/**
+		 * @return the rigid increment, in fixed level voxel coordinates
+		 */
+		AffineTransform3D optimise( int maxIterations )
+		{
+			AffineTransform3D increment = new AffineTransform3D();
+
+			double[] metricAndGradient = computeMetric( increment, true );
+			initialMetric = metricAndGradient[ 0 ];
+			metric = initialMetric;
+
+			double step = INITIAL_STEP;
+
+			for ( int iteration = 0; iteration < maxIterations && step >= MINIMAL_STEP; ++iteration )
+			{
+				final double[] direction = new double[ NUM_PARAMETERS ];
+				for ( int k = 0; k < NUM_PARAMETERS; ++k )
+				{
+					// rotations are stepped in units of the radius
+					direction[ k ] = k < 3 ? metricAndGradient[ 1 + k ] / radius : metricAndGradient[ 1 + k ];
+				}
+
+				final double directionLength = Utils.vectorLength( direction );
+
+				if ( directionLength == 0 ) break;
+
+				final double[] rotation = new double[ 3 ];
+				final double[] translation = new double[ 3 ];
+				for ( int d : XYZ )
+				{
+					rotation[ d ] = step * direction[ d ] / directionLength / radius;
+					translation[ d ] = step * direction[ 3 + d ] / directionLength;
+				}
+
+				final AffineTransform3D candidate = increment.copy().preConcatenate( createRigidTransform( rotation, translation, centre ) );
+				final double candidateMetric = computeMetric( candidate, false )[ 0 ];
+
+				if ( candidateMetric > metric )
+				{
+					increment = candidate;
+					metricAndGradient = computeMetric( increment, true );
+					metric = metricAndGradient[ 0 ];
+				}
+				else
+				{
+					step /= 2.0;
+				}
+			}
+
+			return increment;
+		}
+
+		/**
+		 * @param increment
+		 * @param computeGradient
+		 * @return the NCC, followed, if requested, by its derivatives with respect to
+		 * the rotation vector and the translation of a further increment
+		 */
+		double[] computeMetric( AffineTransform3D increment, boolean computeGradient )
+		{
+			final AffineTransform3D fixedToMovingWithIncrement = increment.copy().preConcatenate( fixedToMoving );
+
+			final int numSlabs = Math.min( fixedDimensions[ Z ], 4 * Runtime.getRuntime().availableProcessors() );
+			final double[][] slabSums = new double[ numSlabs ][ NUM_SUMS ];
+
+			IntStream.range( 0, numSlabs ).parallel().forEach( slab ->
+			{
+				final int zMin = ( int ) ( ( long ) slab * fixedDimensions[ Z ] / numSlabs );
+				final int zMax = ( int ) ( ( long ) ( slab + 1 ) * fixedDimensions[ Z ] / numSlabs );
+				accumulate( fixedToMovingWithIncrement, increment, zMin, zMax, computeGradient, slabSums[ slab ] );
+			} );
+
+			final double[] sums = new double[ NUM_SUMS ];
+			for ( double[] slabSum : slabSums )
+			{
+				for ( int j = 0; j < NUM_SUMS; ++j ) sums[ j ] += slabSum[ j ];
+			}
+
+			final double n = centredFixed.length;
+			final double movingMean = sums[ 1 ] / n;
+			final double movingVariance = sums[ 2 ] - n * movingMean * movingMean;
+
+			final double[] metricAndGradient = new double[ 1 + NUM_PARAMETERS ];
+
+			if ( movingVariance <= 0 ) return metricAndGradient;
+
+			final double movingNorm = Math.sqrt( movingVariance );
+			metricAndGradient[ 0 ] = sums[ 0 ] / ( fixedNorm * movingNorm );
+
+			if ( ! computeGradient ) return metricAndGradient;
+
+			for ( int k = 0; k < NUM_PARAMETERS; ++k )
+			{
+				final double fixedTimesDerivative = sums[ 3 + 3 * k ];
+				final double movingTimesDerivative = sums[ 4 + 3 * k ];
+				final double derivative = sums[ 5 + 3 * k ];
+
+				metricAndGradient[ 1 + k ] = fixedTimesDerivative / ( fixedNorm * movingNorm )
+						- sums[ 0 ] * ( movingTimesDerivative - movingMean * derivative ) / ( fixedNorm * movingVariance * movingNorm );
+			}
+
+			return metricAndGradient;
+		}
+
+		private void accumulate( AffineTransform3D fixedToMovingWithIncrement, AffineTransform3D increment, int zMin, int zMax, boolean computeGradient, double[] sums )
+		{
+			final double[] fixedPosition = new double[ 3 ];
+			final double[] incremented = new double[ 3 ];
+			final double[] movingPosition = new double[ 3 ];
+			final double[] movingGradient = new double[ 3 ];
+			final double[] gradient = new double[ 3 ];
+			final double[] relative = new double[ 3 ];
+			final double[] derivatives = new double[ NUM_PARAMETERS ];
+
+			final int planeSize = fixedDimensions[ X ] * fixedDimensions[ Y ];
+
+			for ( int z = zMin; z < zMax; ++z )
+			{
+				for ( int y = 0; y < fixedDimensions[ Y ]; ++y )
+				{
+					for ( int x = 0, i = z * planeSize + y * fixedDimensions[ X ]; x < fixedDimensions[ X ]; ++x, ++i )
+					{
+						fixedPosition[ X ] = fixedMin[ X ] + x;
+						fixedPosition[ Y ] = fixedMin[ Y ] + y;
+						fixedPosition[ Z ] = fixedMin[ Z ] + z;
+
+						fixedToMovingWithIncrement.apply( fixedPosition, movingPosition );
+
+						final double value = interpolate( movingPosition, computeGradient ? movingGradient : null );
+
+						if ( value == 0 && ! computeGradient ) continue;
+
+						final double fixed = centredFixed[ i ];
+
+						sums[ 0 ] += fixed * value;
+						sums[ 1 ] += value;
+						sums[ 2 ] += value * value;
+
+						if ( ! computeGradient ) continue;
+
+						// gradient with respect to the incremented fixed position
+						for ( int d : XYZ )
+						{
+							gradient[ d ] = 0;
+							for ( int e : XYZ ) gradient[ d ] += fixedToMoving.get( e, d ) * movingGradient[ e ];
+						}
+
+						increment.apply( fixedPosition, incremented );
+						for ( int d : XYZ ) relative[ d ] = incremented[ d ] - centre[ d ];
+
+						// rotation vector: derivative of the position is the cross product of the axis with the relative position
+						derivatives[ 0 ] = - gradient[ Y ] * relative[ Z ] + gradient[ Z ] * relative[ Y ];
+						derivatives[ 1 ] = gradient[ X ] * relative[ Z ] - gradient[ Z ] * relative[ X ];
+						derivatives[ 2 ] = - gradient[ X ] * relative[ Y ] + gradient[ Y ] * relative[ X ];
+						derivatives[ 3 ] = gradient[ X ];
+						derivatives[ 4 ] = gradient[ Y ];
+						derivatives[ 5 ] = gradient[ Z ];
+
+						for ( int k = 0; k < NUM_PARAMETERS; ++k )
+						{
+							sums[ 3 + 3 * k ] += fixed * derivatives[ k ];
+							sums[ 4 + 3 * k ] += value * derivatives[ k ];
+							sums[ 5 + 3 * k ] += derivatives[ k ];
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Trilinear interpolation of the moving level, zero outside.
+		 *
+		 * @param position in moving level voxel coordinates
+		 * @param gradient is set to the spatial gradient of the interpolated value, if not null
+		 * @return the interpolated value
+		 */
+		private double interpolate( double[] position, double[] gradient )
+		{
+			final int[] base = new int[ 3 ];
+			final double[] fraction = new double[ 3 ];
+
+			for ( int d : XYZ )
+			{
+				final double relative = position[ d ] - movingMin[ d ];
+				base[ d ] = ( int ) Math.floor( relative );
+				fraction[ d ] = relative - base[ d ];
+
+				if ( base[ d ] < 0 || base[ d ] + 1 >= movingDimensions[ d ] )
+				{
+					if ( gradient != null ) gradient[ X ] = gradient[ Y ] = gradient[ Z ] = 0;
+					return 0;
+				}
+			}
+
+			final int strideY = movingDimensions[ X ];
+			final int strideZ = movingDimensions[ X ] * movingDimensions[ Y ];
+			final int i = base[ X ] + base[ Y ] * strideY + base[ Z ] * strideZ;
+
+			final double v000 = moving[ i ];
+			final double v100 = moving[ i + 1 ];
+			final double v010 = moving[ i + strideY ];
+			final double v110 = moving[ i + strideY + 1 ];
+			final double v001 = moving[ i + strideZ ];
+			final double v101 = moving[ i + strideZ + 1 ];
+			final double v011 = moving[ i + strideZ + strideY ];
+			final double v111 = moving[ i + strideZ + strideY + 1 ];
+
+			final double fx = fraction[ X ];
+			final double fy = fraction[ Y ];
+			final double fz = fraction[ Z ];
+
+			// interpolation along x
+			final double v00 = v000 + fx * ( v100 - v000 );
+			final double v10 = v010 + fx * ( v110 - v010 );
+			final double v01 = v001 + fx * ( v101 - v001 );
+			final double v11 = v011 + fx * ( v111 - v011 );
+
+			// interpolation along y
+			final double v0 = v00 + fy * ( v10 - v00 );
+			final double v1 = v01 + fy * ( v11 - v01 );
+
+			if ( gradient != null )
+			{
+				final double dx00 = v100 - v000;
+				final double dx10 = v110 - v010;
+				final double dx01 = v101 - v001;
+				final double dx11 = v111 - v011;
+				final double dx0 = dx00 + fy * ( dx10 - dx00 );
+				final double dx1 = dx01 + fy * ( dx11 - dx01 );
+
+				gradient[ X ] = dx0 + fz * ( dx1 - dx0 );
+				gradient[ Y ] = ( v10 - v00 ) + fz * ( ( v11 - v01 ) - ( v10 - v00 ) );
+				gradient[ Z ] = v1 - v0;
+			}
+
+			return v0 + fz * ( v1 - v0 );
+		}
+	}
+}
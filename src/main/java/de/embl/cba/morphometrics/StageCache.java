@@ -0,0 +1,108 @@
+package de.embl.cba.morphometrics;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+/**
+ * Memoised outputs of the stages of a pipeline.
+ *
+ * Each stage output is stored under a key that encodes everything the stage depends on,
+ * i.e. the input and the parameters of the stage and of all upstream stages.
+ * Changing a parameter thus only recomputes the stages that depend on it.
+ *
+ * Per stage, only the most recently used outputs are kept, at most maxEntriesPerStage.
+ * Cached outputs are shared, thus they must not be modified by the caller.
+ */
+public class StageCache
+{
+	private final int maxEntriesPerStage;
+	private final Map< String, LinkedHashMap< String, FutureTask< Object > > > stages;
+
+	public StageCache( int maxEntriesPerStage )
+	{
+		this.maxEntriesPerStage = maxEntriesPerStage;
+		this.stages = new HashMap<>();
+	}
+
+	/**
+	 * If several threads request the same output, it is computed only once,
+	 * and the other threads wait for it.
+	 *
+	 * @param stage
+	 * @param key encodes everything the output of the stage depends on
+	 * @param computation computes the output of the stage, if it is not cached
+	 * @return the cached or computed output
+	 */
+	public < V > V get( String stage, String key, Supplier< V > computation )
+	{
+		final FutureTask< Object > task;
+		final boolean isComputedByThisThread;
+
+		synchronized ( this )
+		{
+			final LinkedHashMap< String, FutureTask< Object > > entries = stages.computeIfAbsent( stage, s -> createEntries() );
+
+			if ( entries.containsKey( key ) )
+			{
+				task = entries.get( key );
+				isComputedByThisThread = false;
+				Utils.log( "Reusing cached " + stage );
+			}
+			else
+			{
+				task = new FutureTask<>( computation::get );
+				isComputedByThisThread = true;
+				entries.put( key, task );
+			}
+		}
+
+		if ( isComputedByThisThread ) task.run();
+
+		try
+		{
+			return ( V ) task.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			synchronized ( this )
+			{
+				final Map< String, FutureTask< Object > > entries = stages.get( stage );
+				if ( entries != null ) entries.remove( key, task );
+			}
+
+			throw new RuntimeException( "Stage failed: " + stage, e );
+		}
+	}
+
+	/**
+	 * Removes the outputs of all stages whose key starts with the given prefix, e.g. all outputs of one input.
+	 */
+	public synchronized void remove( String keyPrefix )
+	{
+		for ( Map< String, FutureTask< Object > > entries : stages.values() )
+		{
+			entries.keySet().removeIf( key -> key.startsWith( keyPrefix ) );
+		}
+	}
+
+	public synchronized void clear()
+	{
+		stages.clear();
+	}
+
+	private LinkedHashMap< String, FutureTask< Object > > createEntries()
+	{
+		return new LinkedHashMap< String, FutureTask< Object > >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< String, FutureTask< Object > > eldest )
+			{
+				return size() > maxEntriesPerStage;
+			}
+		};
+	}
+}
@@ -0,0 +1,35 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+
+/**
+ * Result of thresholding an image, optionally with statistics of the foreground voxels.
+ *
+ * The statistics are only set if they were requested; coordinates are in the coordinate system of the image.
+ */
+public class ThresholdedMask
+{
+	public RandomAccessibleInterval< BitType > mask;
+
+	public long numForegroundVoxels;
+	public long[] boundingBoxMin;
+	public long[] boundingBoxMax;
+	public double[] centroid;
+
+	/**
+	 * Central second order moments, divided by the number of foreground voxels.
+	 */
+	public double[][] secondMoments;
+
+	/**
+	 * @return the bounding box of the foreground, or null if the foreground is empty
+	 */
+	public FinalInterval getBoundingBox()
+	{
+		if ( numForegroundVoxels == 0 ) return null;
+
+		return new FinalInterval( boundingBoxMin, boundingBoxMax );
+	}
+}
@@ -0,0 +1,172 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Thresholding of 3D images into packed bit masks.
+ *
+ * The comparison runs in the loops of {@link Kernels}, specialised to the primitive type of the image.
+ * Voxels are foreground if their value is larger than the threshold.
+ */
+public class Thresholding
+{
+	public static < T extends RealType< T > >
+	RandomAccessibleInterval< BitType > createMask( RandomAccessibleInterval< T > image, double threshold )
+	{
+		return threshold( image, threshold, false ).mask;
+	}
+
+	/**
+	 * @param image
+	 * @param threshold
+	 * @param computeStatistics whether to compute count, bounding box and moments of the foreground voxels
+	 * @return the mask, positioned at the interval of the image, and the requested statistics
+	 */
+	public static < T extends RealType< T > >
+	ThresholdedMask threshold( RandomAccessibleInterval< T > image, double threshold, boolean computeStatistics )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( image );
+
+		final long[] bits = Kernels.threshold( image, threshold );
+
+		final ThresholdedMask thresholdedMask = new ThresholdedMask();
+
+		thresholdedMask.mask = Views.translate(
+				ArrayImgs.bits( new LongArray( bits ), dimensions[ X ], dimensions[ Y ], dimensions[ Z ] ),
+				Intervals.minAsLongArray( image ) );
+
+		if ( computeStatistics )
+		{
+			computeStatistics( bits, dimensions, Intervals.minAsLongArray( image ), thresholdedMask );
+		}
+
+		return thresholdedMask;
+	}
+
+	/**
+	 * Accumulates the statistics per block of words in parallel, visiting only the set bits.
+	 * Sums are taken relative to the image origin and shifted to the image coordinates at the end.
+	 */
+	private static void computeStatistics( long[] bits, int[] dimensions, long[] min, ThresholdedMask thresholdedMask )
+	{
+		final int width = dimensions[ X ];
+		final int planeSize = dimensions[ X ] * dimensions[ Y ];
+		final int numTasks = Kernels.getNumBlocks( bits );
+
+		final long[] counts = new long[ numTasks ];
+		final long[][] mins = new long[ numTasks ][ 3 ];
+		final long[][] maxs = new long[ numTasks ][ 3 ];
+		final double[][] sums = new double[ numTasks ][ 3 ];
+		final double[][][] productSums = new double[ numTasks ][ 3 ][ 3 ];
+
+		IntStream.range( 0, numTasks ).parallel().forEach( task ->
+		{
+			Arrays.fill( mins[ task ], Long.MAX_VALUE );
+			Arrays.fill( maxs[ task ], Long.MIN_VALUE );
+
+			final long[] position = new long[ 3 ];
+			final int lastWord = Math.min( bits.length, ( task + 1 ) * Kernels.WORDS_PER_BLOCK );
+
+			for ( int k = task * Kernels.WORDS_PER_BLOCK; k < lastWord; ++k )
+			{
+				long word = bits[ k ];
+
+				while ( word != 0 )
+				{
+					final int i = ( k << 6 ) + Long.numberOfTrailingZeros( word );
+					word &= word - 1;
+
+					position[ X ] = i % width;
+					position[ Y ] = ( i % planeSize ) / width;
+					position[ Z ] = i / planeSize;
+
+					counts[ task ]++;
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						mins[ task ][ d ] = Math.min( mins[ task ][ d ], position[ d ] );
+						maxs[ task ][ d ] = Math.max( maxs[ task ][ d ], position[ d ] );
+						sums[ task ][ d ] += position[ d ];
+
+						for ( int e = 0; e <= d; ++e )
+						{
+							productSums[ task ][ d ][ e ] += position[ d ] * position[ e ];
+						}
+					}
+				}
+			}
+		} );
+
+		long count = 0;
+		final long[] boundingBoxMin = new long[ 3 ];
+		final long[] boundingBoxMax = new long[ 3 ];
+		final double[] sum = new double[ 3 ];
+		final double[][] productSum = new double[ 3 ][ 3 ];
+
+		Arrays.fill( boundingBoxMin, Long.MAX_VALUE );
+		Arrays.fill( boundingBoxMax, Long.MIN_VALUE );
+
+		for ( int task = 0; task < numTasks; ++task )
+		{
+			count += counts[ task ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				boundingBoxMin[ d ] = Math.min( boundingBoxMin[ d ], mins[ task ][ d ] );
+				boundingBoxMax[ d ] = Math.max( boundingBoxMax[ d ], maxs[ task ][ d ] );
+				sum[ d ] += sums[ task ][ d ];
+
+				for ( int e = 0; e <= d; ++e )
+				{
+					productSum[ d ][ e ] += productSums[ task ][ d ][ e ];
+				}
+			}
+		}
+
+		thresholdedMask.numForegroundVoxels = count;
+
+		if ( count == 0 ) return;
+
+		final double[] centroid = new double[ 3 ];
+		final double[][] secondMoments = new double[ 3 ][ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			centroid[ d ] = sum[ d ] / count;
+		}
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			for ( int e = 0; e <= d; ++e )
+			{
+				secondMoments[ d ][ e ] = productSum[ d ][ e ] / count - centroid[ d ] * centroid[ e ];
+				secondMoments[ e ][ d ] = secondMoments[ d ][ e ];
+			}
+		}
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			boundingBoxMin[ d ] += min[ d ];
+			boundingBoxMax[ d ] += min[ d ];
+			centroid[ d ] += min[ d ];
+		}
+
+		thresholdedMask.boundingBoxMin = boundingBoxMin;
+		thresholdedMask.boundingBoxMax = boundingBoxMax;
+		thresholdedMask.centroid = centroid;
+		thresholdedMask.secondMoments = secondMoments;
+	}
+}
@@ -0,0 +1,134 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Transforms computed for input files, persisted next to the input files.
+ *
+ * An entry is only valid for the exact settings key it was computed with and as long as the
+ * fingerprint of the input file is unchanged. The fingerprint consists of the file size,
+ * the modification time and a checksum of a few blocks sampled evenly over the file,
+ * such that it can be computed without reading the whole file.
+ *
+ * There is one cache file per input file and settings key, thus results for different settings
+ * (e.g. of a parameter sweep) do not overwrite each other.
+ */
+public class TransformCache
+{
+	public static final int NUM_SAMPLED_BLOCKS = 16;
+	public static final int SAMPLED_BLOCK_SIZE = 4096;
+
+	private static final String FINGERPRINT = "fingerprint";
+	private static final String SETTINGS = "settings";
+	private static final String TRANSFORM = "transform";
+
+	/**
+	 * @param inputPath
+	 * @param settingsKey all settings that affect the transform
+	 * @return the cached transform, or null if there is no valid entry
+	 */
+	public static AffineTransform3D read( String inputPath, String settingsKey )
+	{
+		final File cacheFile = getCacheFile( inputPath, settingsKey );
+
+		if ( ! cacheFile.exists() ) return null;
+
+		final Properties properties = new Properties();
+
+		try ( InputStream inputStream = new FileInputStream( cacheFile ) )
+		{
+			properties.load( inputStream );
+
+			if ( ! settingsKey.equals( properties.getProperty( SETTINGS ) ) ) return null;
+			if ( ! computeFingerprint( inputPath ).equals( properties.getProperty( FINGERPRINT ) ) ) return null;
+
+			final String[] values = properties.getProperty( TRANSFORM ).split( "," );
+			final double[] rowPackedCopy = new double[ values.length ];
+			for ( int i = 0; i < values.length; ++i ) rowPackedCopy[ i ] = Double.parseDouble( values[ i ] );
+
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.set( rowPackedCopy );
+
+			Utils.log( "Using cached transform: " + cacheFile );
+
+			return transform;
+		}
+		catch ( IOException | RuntimeException e )
+		{
+			Utils.log( "Could not read cached transform: " + cacheFile );
+			return null;
+		}
+	}
+
+	/**
+	 * @param inputPath
+	 * @param settingsKey all settings that affect the transform
+	 * @param transform
+	 */
+	public static void write( String inputPath, String settingsKey, AffineTransform3D transform )
+	{
+		final File cacheFile = getCacheFile( inputPath, settingsKey );
+
+		final Properties properties = new Properties();
+
+		try ( OutputStream outputStream = new FileOutputStream( cacheFile ) )
+		{
+			final StringBuilder values = new StringBuilder();
+			for ( double value : transform.getRowPackedCopy() )
+			{
+				if ( values.length() > 0 ) values.append( "," );
+				values.append( value );
+			}
+
+			properties.setProperty( FINGERPRINT, computeFingerprint( inputPath ) );
+			properties.setProperty( SETTINGS, settingsKey );
+			properties.setProperty( TRANSFORM, values.toString() );
+			properties.store( outputStream, "Cached transform of " + inputPath );
+		}
+		catch ( IOException e )
+		{
+			Utils.log( "Could not write cached transform: " + cacheFile );
+		}
+	}
+
+	public static File getCacheFile( String inputPath, String settingsKey )
+	{
+		return new File( inputPath + "-transform-" + Integer.toHexString( settingsKey.hashCode() ) + ".txt" );
+	}
+
+	/**
+	 * @return size, modification time and checksum of evenly sampled blocks of the file
+	 */
+	public static String computeFingerprint( String path ) throws IOException
+	{
+		final File file = new File( path );
+
+		final CRC32 checksum = new CRC32();
+
+		try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" ) )
+		{
+			final long length = randomAccessFile.length();
+			final byte[] block = new byte[ SAMPLED_BLOCK_SIZE ];
+
+			for ( int i = 0; i < NUM_SAMPLED_BLOCKS; ++i )
+			{
+				final long position = Math.max( 0, ( length - SAMPLED_BLOCK_SIZE ) * i / ( NUM_SAMPLED_BLOCKS - 1 ) );
+				randomAccessFile.seek( position );
+				final int numRead = randomAccessFile.read( block );
+				if ( numRead > 0 ) checksum.update( block, 0, numRead );
+			}
+		}
+
+		return file.length() + "-" + file.lastModified() + "-" + Long.toHexString( checksum.getValue() );
+	}
+}
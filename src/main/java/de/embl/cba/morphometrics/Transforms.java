@@ -11,11 +11,16 @@ import net.imglib2.realtransform.*;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import java.util.ArrayList;
+import java.util.stream.LongStream;
 
+import static de.embl.cba.morphometrics.Constants.X;
 import static de.embl.cba.morphometrics.Constants.XYZ;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
 
 public abstract class Transforms< T extends InvertibleRealTransform & Concatenable< T > & PreConcatenable< T > >
 {
@@ -92,6 +97,128 @@ public abstract class Transforms< T extends InvertibleRealTransform & Concatenab
 		return Views.raster( rra );
 	}
 
+	/**
+	 * Resamples the input directly into an ArrayImg covering only the given output interval.
+	 *
+	 * For each output line along X the range of X positions whose back-transformed
+	 * position lies inside the input interval is computed analytically;
+	 * only those voxels are interpolated, all other voxels remain zero.
+	 *
+	 * @param rai input image
+	 * @param transform transformation from input to output voxel coordinates
+	 * @param outputInterval interval of the output image (in output voxel coordinates)
+	 * @param interpolatorFactory interpolation used for sampling the input
+	 * @return output image, with its origin at the min of the outputInterval
+	 */
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createTransformedArrayImg( RandomAccessibleInterval< T > rai,
+															 AffineTransform3D transform,
+															 FinalInterval outputInterval,
+															 InterpolatorFactory interpolatorFactory )
+	{
+		RandomAccessibleInterval< T > output = new ArrayImgFactory( rai.randomAccess().get() ).create( outputInterval );
+		output = Views.translate( output, Intervals.minAsLongArray( outputInterval ) );
+
+		final AffineTransform3D inverse = transform.inverse();
+
+		final RealRandomAccessible< T > interpolated = Views.interpolate( Views.extendZero( rai ), interpolatorFactory );
+
+		final RandomAccessibleInterval< T > finalOutput = output;
+
+		LongStream.rangeClosed( outputInterval.min( Z ), outputInterval.max( Z ) ).parallel().forEach(
+				z -> transformPlane( rai, interpolated, finalOutput, inverse, z ) );
+
+		return output;
+	}
+
+	private static < T extends NumericType< T > >
+	void transformPlane( RandomAccessibleInterval< T > input,
+						 RealRandomAccessible< T > interpolated,
+						 RandomAccessibleInterval< T > output,
+						 AffineTransform3D inverse,
+						 long z )
+	{
+		final RealRandomAccess< T > inputAccess = interpolated.realRandomAccess();
+		final RandomAccess< T > outputAccess = output.randomAccess();
+
+		final long[] outputPosition = new long[ 3 ];
+		final double[] inputPosition = new double[ 3 ];
+		final double[] xRange = new double[ 2 ];
+
+		outputPosition[ Z ] = z;
+
+		for ( long y = output.min( Y ); y <= output.max( Y ); ++y )
+		{
+			outputPosition[ Y ] = y;
+
+			xRange[ 0 ] = output.min( X );
+			xRange[ 1 ] = output.max( X );
+
+			if ( ! restrictToInputFootprint( input, inverse, y, z, xRange ) ) continue;
+
+			final long xMin = ( long ) xRange[ 0 ];
+			final long xMax = ( long ) xRange[ 1 ];
+
+			outputPosition[ X ] = xMin;
+			outputAccess.setPosition( outputPosition );
+
+			for ( int d : XYZ )
+			{
+				inputPosition[ d ] = inverse.get( d, X ) * xMin + inverse.get( d, Y ) * y + inverse.get( d, Z ) * z + inverse.get( d, 3 );
+			}
+
+			for ( long x = xMin; x <= xMax; ++x )
+			{
+				inputAccess.setPosition( inputPosition );
+				outputAccess.get().set( inputAccess.get() );
+				outputAccess.fwd( X );
+
+				for ( int d : XYZ )
+				{
+					inputPosition[ d ] += inverse.get( d, X );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Along one output line ( y, z ) the input position is linear in x.
+	 * This intersects the given x range with the range of x for which
+	 * the input position lies within the input interval.
+	 *
+	 * @return false if no voxel of this line maps into the input
+	 */
+	private static boolean restrictToInputFootprint( Interval input, AffineTransform3D inverse, long y, long z, double[] xRange )
+	{
+		final double eps = 1e-9;
+
+		double xMin = xRange[ 0 ];
+		double xMax = xRange[ 1 ];
+
+		for ( int d : XYZ )
+		{
+			final double slope = inverse.get( d, X );
+			final double offset = inverse.get( d, Y ) * y + inverse.get( d, Z ) * z + inverse.get( d, 3 );
+
+			if ( Math.abs( slope ) < eps )
+			{
+				if ( offset < input.min( d ) - eps || offset > input.max( d ) + eps ) return false;
+			}
+			else
+			{
+				final double x0 = ( input.min( d ) - offset ) / slope;
+				final double x1 = ( input.max( d ) - offset ) / slope;
+				xMin = Math.max( xMin, Math.min( x0, x1 ) );
+				xMax = Math.min( xMax, Math.max( x0, x1 ) );
+			}
+		}
+
+		xRange[ 0 ] = Math.ceil( xMin - eps );
+		xRange[ 1 ] = Math.floor( xMax + eps );
+
+		return xRange[ 0 ] <= xRange[ 1 ];
+	}
+
     public static < T extends NumericType< T > >
 	FinalInterval createTransformedInterval( RandomAccessibleInterval< T > rai, InvertibleRealTransform transform )
 	{
@@ -220,4 +347,20 @@ public abstract class Transforms< T extends InvertibleRealTransform & Concatenab
 
 		return Views.stack( transformedChannels );
 	}
+
+	public static <T extends RealType<T> & NativeType< T > >
+	RandomAccessibleInterval< T > transformAllChannels( RandomAccessibleInterval< T > images, AffineTransform3D registrationTransform, FinalInterval outputInterval )
+	{
+		ArrayList< RandomAccessibleInterval< T > > transformedChannels = new ArrayList<>(  );
+
+		long numChannels = images.dimension( 3 );
+
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			final RandomAccessibleInterval< T > channel = Views.hyperSlice( images, 3, c );
+			transformedChannels.add( createTransformedArrayImg( channel, registrationTransform, outputInterval, new NLinearInterpolatorFactory() ) );
+		}
+
+		return Views.stack( transformedChannels );
+	}
 }
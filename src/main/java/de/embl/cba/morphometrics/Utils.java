@@ -8,9 +8,7 @@ import net.imagej.Dataset;
 import net.imagej.axis.LinearAxis;
 import net.imglib2.*;
 import net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.algorithm.neighborhood.HyperSphereShape;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.Shape;
 import net.imglib2.converter.Converters;
 import net.imglib2.img.ImgFactory;
@@ -18,10 +16,9 @@ import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.LongArray;
-import net.imglib2.loops.LoopBuilder;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.roi.labeling.ImgLabeling;
-import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
@@ -258,8 +255,8 @@ public class Utils
 				for ( int d = 0; d < numHyperSliceDimensions; ++d )
 				{
 					centroid[ d ] += cursor.getLongPosition( d );
-					numPoints++;
 				}
+				numPoints++;
 			}
 		}
 
@@ -333,7 +330,7 @@ public class Utils
 	public static  < T extends RealType< T > & NativeType< T > >
 	void applyMask( RandomAccessibleInterval< T > rai, RandomAccessibleInterval< BitType > mask )
 	{
-		LoopBuilder.setImages( rai, mask ).forEachPixel( ( i, m ) ->  i.setReal( ( m.get() ? i.getRealDouble() : 0 ) ) );
+		Kernels.applyMask( rai, mask );
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
@@ -347,19 +344,13 @@ public class Utils
 	public static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< BitType > createBinaryImage(
 			RandomAccessibleInterval< T > input, double doubleThreshold )
 	{
-		final ArrayImg< BitType, LongArray > binaryImage = ArrayImgs.bits( Intervals.dimensionsAsLongArray( input ) );
-
+		// the threshold is compared as a value of the input type, i.e. rounded for integer types
 		T threshold = input.randomAccess().get().copy();
 		threshold.setReal( doubleThreshold );
 
-		final BitType one = new BitType( true );
-		final BitType zero = new BitType( false );
+		final long[] bits = Kernels.threshold( input, threshold.getRealDouble() );
 
-		LoopBuilder.setImages( input, binaryImage ).forEachPixel( ( i, b ) ->
-				{
-					b.set( i.compareTo( threshold ) > 0 ?  one : zero );
-				}
-		);
+		final ArrayImg< BitType, LongArray > binaryImage = ArrayImgs.bits( new LongArray( bits ), Intervals.dimensionsAsLongArray( input ) );
 
 		return binaryImage;
 
@@ -456,18 +447,7 @@ public class Utils
 	public static < T extends RealType< T > & NativeType< T > >
 	double computeAverage( final RandomAccessibleInterval< T > rai )
 	{
-		final Cursor< T > cursor = Views.iterable( rai ).cursor();
-
-		double average = 0;
-
-		while ( cursor.hasNext() )
-		{
-			average += cursor.next().getRealDouble();
-		}
-
-		average /= Views.iterable( rai ).size();
-
-		return average;
+		return Kernels.computeAverage( rai );
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
@@ -523,27 +503,7 @@ public class Utils
 	public static < T extends RealType< T > & NativeType< T > >
 	double computeAverage( final RandomAccessibleInterval< T > rai, final RandomAccessibleInterval< BitType > mask )
 	{
-		final Cursor< BitType > cursor = Views.iterable( mask ).cursor();
-		final RandomAccess< T > randomAccess = rai.randomAccess();
-
-		randomAccess.setPosition( cursor );
-
-		double average = 0;
-		long n = 0;
-
-		while ( cursor.hasNext() )
-		{
-			if ( cursor.next().get() )
-			{
-				randomAccess.setPosition( cursor );
-				average += randomAccess.get().getRealDouble();
-				++n;
-			}
-		}
-
-		average /= n;
-
-		return average;
+		return Kernels.computeAverage( rai, mask );
 	}
 
 
@@ -622,108 +582,36 @@ public class Utils
 		return false;
 	}
 
-	public static < T extends RealType< T > & NativeType< T > >
-	boolean isLateralBoundaryPixel( Neighborhood< T > cursor, RandomAccessibleInterval< T > rai )
-	{
-		int numDimensions = rai.numDimensions();
-		final long[] position = new long[ numDimensions ];
-		cursor.localize( position );
-
-		for ( int d = 0; d < numDimensions - 1; ++d )
-		{
-			if ( position[ d ] == rai.min( d ) ) return true;
-			if ( position[ d ] == rai.max( d ) ) return true;
-		}
 
-		return false;
-
-	}
-
-
-	public static < T extends RealType< T > & NativeType< T > >
-	RandomAccessibleInterval< BitType > createSeeds( RandomAccessibleInterval< T > distance, Shape shape, double globalThreshold, double localThreshold )
-	{
-
-		RandomAccessibleInterval< BitType > maxima = ArrayImgs.bits( Intervals.dimensionsAsLongArray( distance ) );
-		maxima = Transforms.getWithAdjustedOrigin( distance, maxima );
-
-		RandomAccessible< Neighborhood< T > > neighborhoods = shape.neighborhoodsRandomAccessible( Views.extendPeriodic( distance ) );
-		RandomAccessibleInterval< Neighborhood< T > > neighborhoodsInterval = Views.interval( neighborhoods, distance );
-
-		final Cursor< Neighborhood< T > > neighborhoodCursor = Views.iterable( neighborhoodsInterval ).cursor();
-		final RandomAccess< T > distanceRandomAccess = distance.randomAccess();
-		final RandomAccess< BitType > maximaRandomAccess = maxima.randomAccess();
-
-		while ( neighborhoodCursor.hasNext() )
-		{
-			final Neighborhood< T > neighborhood = neighborhoodCursor.next();
-			maximaRandomAccess.setPosition( neighborhood );
-			distanceRandomAccess.setPosition( neighborhood );
-
-			T centerValue = distanceRandomAccess.get();
-
-			if ( centerValue.getRealDouble() > globalThreshold )
-			{
-				maximaRandomAccess.get().set( true );
-			}
-			else if ( isLateralBoundaryPixel( neighborhood, distance ) && distanceRandomAccess.get().getRealDouble() >  0 )
-			{
-				maximaRandomAccess.get().set( true );
-			}
-			else if ( isCenterLargestOrEqual( centerValue, neighborhood ) )
-			{
-				if ( centerValue.getRealDouble() > localThreshold )
-				{
-					// local maximum and larger than local Threshold
-					maximaRandomAccess.get().set( true );
-				}
-			}
-
-		}
-
-		return maxima;
-	}
 
+	/**
+	 * @return labeling of the 26-connected components of the non-zero voxels, with labels 0, 1, ..., numComponents - 1
+	 */
 	public static < T extends IntegerType >
 	ImgLabeling< Integer, IntType > createLabelImg( RandomAccessibleInterval< T > rai )
 	{
-		RandomAccessibleInterval< IntType > labelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( rai ) );
-		labelImg = Transforms.getWithAdjustedOrigin( rai, labelImg );
-		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( labelImg );
+		final LabeledComponents components = ConnectedComponentLabeling.label( asMask( rai ) );
 
-		final java.util.Iterator< Integer > labelCreator = new java.util.Iterator< Integer >()
-		{
-			int id = 0;
+		// label image value k is the index of the label set { k - 1 }
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( components.labelImg );
 
-			@Override
-			public boolean hasNext()
-			{
-				return true;
-			}
+		// starting from the empty set at index 0, the label sets are interned in index order
+		final LabelingMapping< Integer > mapping = labeling.getMapping();
 
-			@Override
-			public synchronized Integer next()
-			{
-				return id++;
-			}
-		};
-
-		ConnectedComponents.labelAllConnectedComponents( Views.extendBorder( rai ), labeling, labelCreator, ConnectedComponents.StructuringElement.EIGHT_CONNECTED );
+		for ( int label = 0; label < components.numLabels; ++label )
+		{
+			mapping.addLabelToSetAtIndex( label, 0 );
+		}
 
 		return labeling;
 	}
 
-	private static < T extends RealType< T > & NativeType< T > >
-	boolean isCenterLargestOrEqual( T center, Neighborhood< T > neighborhood )
+	private static < T extends IntegerType >
+	RandomAccessibleInterval< BitType > asMask( RandomAccessibleInterval< T > rai )
 	{
-		for( T neighbor : neighborhood )
-		{
-			if( neighbor.compareTo( center ) > 0 )
-			{
-				return false;
-			}
-		}
-		return true;
+		if ( Views.iterable( rai ).firstElement() instanceof BitType ) return ( RandomAccessibleInterval ) rai;
+
+		return Converters.convert( rai, ( i, o ) -> o.set( i.getIntegerLong() != 0 ), new BitType() );
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
@@ -739,19 +627,6 @@ public class Utils
 	}
 
 
-
-	public static RandomAccessibleInterval< IntType >  asIntImg( ImgLabeling< Integer, IntType > labeling )
-	{
-		final RandomAccessibleInterval< IntType > intImg =
-				Converters.convert( ( RandomAccessibleInterval< LabelingType< Integer > > ) labeling,
-						( i, o ) -> {
-							o.set( i.getIndex().getInteger() );
-						}, new IntType() );
-
-		return intImg;
-	}
-
-
 	public static double[] get3dDoubleArray( double value )
 	{
 		double[] registrationCalibration = new double[ 3 ];
@@ -0,0 +1,242 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+
+import java.util.Arrays;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Seeded watershed of 3D distance transforms, flooding from the largest distances downwards.
+ *
+ * Distances are quantised into integer priorities, which are processed with a bucket queue.
+ * A voxel obtains its label when it is first reached by a region and is then never relabelled;
+ * there are no watershed lines. Voxels are connected to their six face neighbours.
+ */
+public class Watershed
+{
+	private static final int MAX_NUM_BUCKETS = 65536;
+
+	/**
+	 * @param distance
+	 * @param seeds label image with 0 as background
+	 * @param mask voxels outside the mask are never labelled; may be null
+	 * @param stopPosition if not null, the flooding stops as soon as the region containing this position is complete;
+	 *                     all other regions may then be incomplete
+	 * @return label image
+	 */
+	public static < T extends RealType< T > >
+	RandomAccessibleInterval< IntType > computeSeededWatershed(
+			RandomAccessibleInterval< T > distance,
+			RandomAccessibleInterval< IntType > seeds,
+			RandomAccessibleInterval< BitType > mask,
+			long[] stopPosition )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( distance );
+		final float[] values = FlatArrays.getFloats( distance );
+		final int[] labels = FlatArrays.getInts( seeds ).clone();
+		final long[] maskBits = mask == null ? null : FlatArrays.getPackedBits( mask );
+
+		int stopIndex = -1;
+		if ( stopPosition != null )
+		{
+			stopIndex = 0;
+			for ( int d = 2; d >= 0; --d )
+			{
+				stopIndex = stopIndex * dimensions[ d ] + ( int ) ( stopPosition[ d ] - distance.min( d ) );
+			}
+		}
+
+		new Flooding( values, labels, maskBits, dimensions ).run( stopIndex );
+
+		final RandomAccessibleInterval< IntType > labelImg = ArrayImgs.ints( labels, dimensions[ X ], dimensions[ Y ], dimensions[ Z ] );
+
+		return Transforms.getWithAdjustedOrigin( distance, labelImg );
+	}
+
+	private static class Flooding
+	{
+		private final float[] values;
+		private final int[] labels;
+		private final long[] maskBits;
+		private final int[] dimensions;
+		private final float maximum;
+		private final double scaling;
+		private final BucketQueue queue;
+		private int[] numQueuedPerLabel;
+
+		Flooding( float[] values, int[] labels, long[] maskBits, int[] dimensions )
+		{
+			this.values = values;
+			this.labels = labels;
+			this.maskBits = maskBits;
+			this.dimensions = dimensions;
+
+			maximum = getMaximumFiniteValue( values );
+			final int numBuckets = ( int ) Math.min( MAX_NUM_BUCKETS, Math.floor( maximum ) + 1 );
+			scaling = maximum > 0 ? ( numBuckets - 1 ) / maximum : 0;
+
+			queue = new BucketQueue( numBuckets );
+		}
+
+		void run( int stopIndex )
+		{
+			final int width = dimensions[ X ];
+			final int height = dimensions[ Y ];
+			final int depth = dimensions[ Z ];
+			final int planeSize = width * height;
+
+			int maxLabel = 0;
+
+			for ( int i = 0; i < labels.length; ++i )
+			{
+				if ( maskBits != null && ! isInMask( i ) ) labels[ i ] = 0;
+				maxLabel = Math.max( maxLabel, labels[ i ] );
+			}
+
+			numQueuedPerLabel = new int[ maxLabel + 1 ];
+
+			for ( int i = 0; i < labels.length; ++i )
+			{
+				if ( labels[ i ] != 0 ) enqueue( i, labels[ i ], 0 );
+			}
+
+			while ( ! queue.isEmpty() )
+			{
+				final int priority = queue.getCurrentPriority();
+				final int i = queue.poll();
+				final int label = labels[ i ];
+
+				numQueuedPerLabel[ label ]--;
+
+				final int x = i % width;
+				final int y = ( i / width ) % height;
+				final int z = i / planeSize;
+
+				if ( x > 0 ) visit( i - 1, label, priority );
+				if ( x < width - 1 ) visit( i + 1, label, priority );
+				if ( y > 0 ) visit( i - width, label, priority );
+				if ( y < height - 1 ) visit( i + width, label, priority );
+				if ( z > 0 ) visit( i - planeSize, label, priority );
+				if ( z < depth - 1 ) visit( i + planeSize, label, priority );
+
+				if ( stopIndex >= 0 && isComplete( labels[ stopIndex ] ) ) return;
+			}
+		}
+
+		/**
+		 * A region is complete once none of its voxels is waiting in the queue,
+		 * because only dequeued voxels can add further voxels to their region.
+		 */
+		private boolean isComplete( int label )
+		{
+			return label != 0 && numQueuedPerLabel[ label ] == 0;
+		}
+
+		private void visit( int j, int label, int priority )
+		{
+			if ( labels[ j ] != 0 || ( maskBits != null && ! isInMask( j ) ) ) return;
+
+			labels[ j ] = label;
+			enqueue( j, label, priority );
+		}
+
+		private void enqueue( int i, int label, int minimumPriority )
+		{
+			numQueuedPerLabel[ label ]++;
+
+			// never go back to an already processed priority
+			queue.add( Math.max( minimumPriority, getPriority( values[ i ] ) ), i );
+		}
+
+		private int getPriority( float value )
+		{
+			// large distances are flooded first
+			return ( int ) ( ( maximum - Math.min( value, maximum ) ) * scaling );
+		}
+
+		private boolean isInMask( int i )
+		{
+			return ( ( maskBits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) != 0;
+		}
+	}
+
+	private static float getMaximumFiniteValue( float[] values )
+	{
+		float maximum = 0;
+
+		for ( float value : values )
+		{
+			if ( value < DistanceTransforms.INFINITE_DISTANCE && value > maximum ) maximum = value;
+		}
+
+		return maximum;
+	}
+
+	/**
+	 * Queue of voxel indices with integer priorities, served lowest priority first and
+	 * first-in first-out within one priority.
+	 */
+	private static class BucketQueue
+	{
+		private final int[][] buckets;
+		private final int[] heads;
+		private final int[] tails;
+		private int currentPriority;
+		private long size;
+
+		BucketQueue( int numBuckets )
+		{
+			buckets = new int[ numBuckets ][];
+			heads = new int[ numBuckets ];
+			tails = new int[ numBuckets ];
+		}
+
+		void add( int priority, int index )
+		{
+			if ( buckets[ priority ] == null ) buckets[ priority ] = new int[ 16 ];
+			else if ( tails[ priority ] == buckets[ priority ].length ) buckets[ priority ] = Arrays.copyOf( buckets[ priority ], 2 * tails[ priority ] );
+
+			buckets[ priority ][ tails[ priority ]++ ] = index;
+
+			if ( priority < currentPriority ) currentPriority = priority;
+
+			size++;
+		}
+
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		/**
+		 * @return the priority of the voxel that is returned by the next call to {@link #poll()}
+		 */
+		int getCurrentPriority()
+		{
+			while ( heads[ currentPriority ] == tails[ currentPriority ] )
+			{
+				// release the memory of exhausted buckets
+				buckets[ currentPriority ] = null;
+				heads[ currentPriority ] = 0;
+				tails[ currentPriority ] = 0;
+				currentPriority++;
+			}
+
+			return currentPriority;
+		}
+
+		int poll()
+		{
+			final int priority = getCurrentPriority();
+			size--;
+			return buckets[ priority ][ heads[ priority ]++ ];
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package de.embl.cba.morphometrics;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+
+/**
+ * Watershed seeds from a (squared) distance transform of a 3D mask.
+ *
+ * A voxel is a seed voxel if
+ * - its distance is larger than the global threshold, or
+ * - it lies on the lateral (X or Y) image boundary and its distance is larger than zero, or
+ * - its distance is larger than the local threshold and not smaller than the distance of any of its six neighbours.
+ *
+ * Neighbours outside the image are ignored.
+ * Connected (including diagonally) seed voxels form one seed.
+ */
+public class WatershedSeeds
+{
+	private static final int SEED = -1;
+
+	/**
+	 * @param distance
+	 * @param globalThreshold
+	 * @param localThreshold
+	 * @return label image with the seeds numbered from 1 to the number of seeds, and 0 elsewhere
+	 */
+	public static < T extends RealType< T > >
+	RandomAccessibleInterval< IntType > createSeedLabels( RandomAccessibleInterval< T > distance, double globalThreshold, double localThreshold )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( distance );
+		final float[] values = FlatArrays.getFloats( distance );
+		final int[] labels = new int[ values.length ];
+
+		markSeeds( values, labels, dimensions, globalThreshold, localThreshold );
+
+		labelSeeds( labels, dimensions );
+
+		final RandomAccessibleInterval< IntType > labelImg = ArrayImgs.ints( labels, dimensions[ X ], dimensions[ Y ], dimensions[ Z ] );
+
+		return Transforms.getWithAdjustedOrigin( distance, labelImg );
+	}
+
+	private static void markSeeds( float[] values, int[] labels, int[] dimensions, double globalThreshold, double localThreshold )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int depth = dimensions[ Z ];
+		final int planeSize = width * height;
+
+		final int[] neighbourOffsets = new int[]{ -1, 1, -width, width, -planeSize, planeSize };
+
+		IntStream.range( 0, depth ).parallel().forEach( z ->
+		{
+			final boolean isBoundaryPlane = z == 0 || z == depth - 1;
+
+			for ( int y = 0; y < height; ++y )
+			{
+				final boolean isLateralBoundaryRow = y == 0 || y == height - 1;
+
+				for ( int x = 0, i = z * planeSize + y * width; x < width; ++x, ++i )
+				{
+					final float value = values[ i ];
+
+					if ( value > globalThreshold )
+					{
+						labels[ i ] = SEED;
+					}
+					else if ( isLateralBoundaryRow || x == 0 || x == width - 1 )
+					{
+						if ( value > 0 ) labels[ i ] = SEED;
+					}
+					else if ( value <= localThreshold )
+					{
+						continue;
+					}
+					else if ( isBoundaryPlane )
+					{
+						if ( isLocalMaximumAtBoundary( values, i, z, dimensions ) ) labels[ i ] = SEED;
+					}
+					else if ( isLocalMaximum( values, i, neighbourOffsets ) )
+					{
+						labels[ i ] = SEED;
+					}
+				}
+			}
+		} );
+	}
+
+	private static boolean isLocalMaximum( float[] values, int i, int[] neighbourOffsets )
+	{
+		final float value = values[ i ];
+
+		for ( int offset : neighbourOffsets )
+		{
+			if ( values[ i + offset ] > value ) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * For voxels in the first or last plane that are not on the lateral boundary, i.e. that have all their X and Y neighbours.
+	 */
+	private static boolean isLocalMaximumAtBoundary( float[] values, int i, int z, int[] dimensions )
+	{
+		final int width = dimensions[ X ];
+		final int planeSize = width * dimensions[ Y ];
+		final float value = values[ i ];
+
+		if ( values[ i - 1 ] > value || values[ i + 1 ] > value ) return false;
+		if ( values[ i - width ] > value || values[ i + width ] > value ) return false;
+		if ( z > 0 && values[ i - planeSize ] > value ) return false;
+		if ( z < dimensions[ Z ] - 1 && values[ i + planeSize ] > value ) return false;
+
+		return true;
+	}
+
+	/**
+	 * Replaces the marked seed voxels by the label of their connected component.
+	 * Seed voxels are sparse, thus this is done serially.
+	 */
+	private static void labelSeeds( int[] labels, int[] dimensions )
+	{
+		final int width = dimensions[ X ];
+		final int height = dimensions[ Y ];
+		final int planeSize = width * height;
+
+		int[] stack = new int[ 1024 ];
+		int label = 0;
+
+		for ( int start = 0; start < labels.length; ++start )
+		{
+			if ( labels[ start ] != SEED ) continue;
+
+			labels[ start ] = ++label;
+			stack[ 0 ] = start;
+			int stackSize = 1;
+
+			while ( stackSize > 0 )
+			{
+				final int i = stack[ --stackSize ];
+				final int x = i % width;
+				final int y = ( i / width ) % height;
+				final int z = i / planeSize;
+
+				for ( int nz = Math.max( 0, z - 1 ); nz <= Math.min( dimensions[ Z ] - 1, z + 1 ); ++nz )
+				{
+					for ( int ny = Math.max( 0, y - 1 ); ny <= Math.min( height - 1, y + 1 ); ++ny )
+					{
+						for ( int nx = Math.max( 0, x - 1 ); nx <= Math.min( width - 1, x + 1 ); ++nx )
+						{
+							final int j = nz * planeSize + ny * width + nx;
+
+							if ( labels[ j ] != SEED ) continue;
+
+							labels[ j ] = label;
+
+							if ( stackSize == stack.length ) stack = Arrays.copyOf( stack, 2 * stack.length );
+
+							stack[ stackSize++ ] = j;
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package de.embl.cba.morphometrics.drosophila.shavenbaby;
+
+import de.embl.cba.morphometrics.*;
+import de.embl.cba.morphometrics.geometry.CentroidsParameters;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.XYZ;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+import static de.embl.cba.morphometrics.drosophila.shavenbaby.ShavenBabyRegistrationSettings.drosophilaLength;
+import static de.embl.cba.morphometrics.drosophila.shavenbaby.ShavenBabyRegistrationSettings.drosophilaWidth;
+
+/**
+ * Coarse-to-fine variant of the shaven baby registration.
+ *
+ * The complete registration runs once at the coarse resolution.
+ * At each finer level, only the roll and the centre are refined: the level is segmented within a window
+ * around the embryo as placed by the current transform, the centre is moved onto the centroid of the segmented embryo,
+ * and the remaining roll angle is measured on the segmented embryo.
+ * The refinement stops as soon as one level changes the transform by less than the tolerances.
+ */
+public class CoarseToFineRegistration
+{
+	final ShavenBabyRegistrationSettings settings;
+
+	private StageCache stageCache;
+
+	public CoarseToFineRegistration( ShavenBabyRegistrationSettings settings )
+	{
+		this.settings = settings;
+	}
+
+	/**
+	 * @param stageCache used by the coarse registration, may be null, see {@link ShavenBabyRegistration#setStageCache}
+	 */
+	public void setStageCache( StageCache stageCache )
+	{
+		this.stageCache = stageCache;
+	}
+
+	/**
+	 * @param pyramid pyramid of the shaven baby channel, with refractive index corrected input calibration
+	 * @return transformation from input voxel coordinates to registered voxel coordinates at the output resolution
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	AffineTransform3D computeRegistration( ImagePyramid< T > pyramid )
+	{
+		return computeRegistration( pyramid, new ShavenBabyRegistrationResult() );
+	}
+
+	/**
+	 * @param pyramid pyramid of the shaven baby channel, with refractive index corrected input calibration
+	 * @param result receives the quality measures and stage times; all but the roll angle are those of the coarse registration
+	 * @return transformation from input voxel coordinates to registered voxel coordinates at the output resolution
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	AffineTransform3D computeRegistration( ImagePyramid< T > pyramid, ShavenBabyRegistrationResult result )
+	{
+		Utils.log( "Coarse registration at " + settings.coarseRegistrationResolution + " um..." );
+
+		final ShavenBabyRegistrationSettings coarseSettings = settings.copy();
+		coarseSettings.coarseToFine = false;
+		coarseSettings.registrationResolution = settings.coarseRegistrationResolution;
+		coarseSettings.watershedSeedsLocalMaximaDistanceThreshold = Math.max( settings.watershedSeedsLocalMaximaDistanceThreshold, 3 * settings.coarseRegistrationResolution );
+
+		final ShavenBabyRegistration coarseRegistration = new ShavenBabyRegistration( coarseSettings );
+		coarseRegistration.setStageCache( stageCache );
+		coarseRegistration.setResult( result );
+
+		AffineTransform3D registration = coarseRegistration.computeRegistration( pyramid );
+
+		result.startStage( "refinement" );
+
+		for ( double resolution = settings.coarseRegistrationResolution / 2.0; ; resolution /= 2.0 )
+		{
+			resolution = Math.max( resolution, settings.registrationResolution );
+
+			Utils.log( "Refining roll and centre at " + resolution + " um..." );
+
+			final boolean hasConverged = refine( pyramid, resolution, registration, result );
+
+			if ( hasConverged || resolution == settings.registrationResolution ) break;
+		}
+
+		return registration;
+	}
+
+	/**
+	 * Refines the roll and the centre of the registration in place, and adds the roll angle change to the result.
+	 *
+	 * @return whether the change of the registration is below the tolerances
+	 */
+	private < T extends RealType< T > & NativeType< T > >
+	boolean refine( ImagePyramid< T > pyramid, double resolution, AffineTransform3D registration, ShavenBabyRegistrationResult result )
+	{
+		final double[] inputCalibration = pyramid.getInputCalibration();
+
+		// from level voxel coordinates to aligned coordinates, in level voxel units
+		final AffineTransform3D alignment = Transforms.getScalingTransform( inputCalibration, resolution ).inverse()
+				.preConcatenate( registration )
+				.preConcatenate( Transforms.getScalingTransform( Utils.get3dDoubleArray( settings.outputResolution ), resolution ) );
+
+		final RandomAccessibleInterval< BitType > embryoMask = createEmbryoMask( pyramid.get( resolution ), alignment, resolution );
+
+		final ThresholdedMask embryo = Thresholding.threshold( embryoMask, 0.5, true );
+
+		if ( embryo.numForegroundVoxels == 0 )
+		{
+			Utils.log( "No embryo found at " + resolution + " um, keeping the current registration." );
+			return true;
+		}
+
+		/**
+		 * Centre
+		 */
+
+		final double[] alignedCentroid = new double[ 3 ];
+		alignment.apply( embryo.centroid, alignedCentroid );
+
+		final AffineTransform3D centreTranslation = new AffineTransform3D();
+		centreTranslation.translate( - alignedCentroid[ X ], - alignedCentroid[ Y ], - alignedCentroid[ Z ] );
+
+		alignment.preConcatenate( centreTranslation );
+
+		final double centreShift = Utils.vectorLength( alignedCentroid ) * resolution;
+
+		/**
+		 * Roll
+		 */
+
+		final CentroidsParameters centroidsParameters = AxisProfiles.computeCentroidsParametersAlongX( embryoMask, alignment, resolution, settings.rollAngleMaxDistanceToCenter );
+
+		final double rollAngle = ShavenBabyRegistration.computeRollAngle( centroidsParameters, settings.rollAngleMinDistanceToAxis, settings.rollAngleMinDistanceToCenter, settings.rollAngleMaxDistanceToCenter );
+
+		final AffineTransform3D rollTransform = new AffineTransform3D();
+		rollTransform.rotate( X, - Math.toRadians( rollAngle ) );
+
+		alignment.preConcatenate( rollTransform );
+
+		Utils.log( "Centre shift [um]: " + centreShift + ", roll angle change [degrees]: " + rollAngle );
+
+		result.rollAngle += rollAngle;
+
+		registration.set( Transforms.getScalingTransform( inputCalibration, resolution )
+				.preConcatenate( alignment )
+				.preConcatenate( Transforms.getScalingTransform( Utils.get3dDoubleArray( resolution ), settings.outputResolution ) ) );
+
+		return centreShift < settings.refinementCentreTolerance && Math.abs( rollAngle ) < settings.refinementRollAngleTolerance;
+	}
+
+	/**
+	 * Segments the level within the bounding box of the embryo shape, as placed by the alignment,
+	 * enlarged by the search window, and keeps the largest object within that shape.
+	 */
+	private < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< BitType > createEmbryoMask( RandomAccessibleInterval< T > level, AffineTransform3D alignment, double resolution )
+	{
+		final double halfLength = ( drosophilaLength / 2.0 + settings.refinementSearchWindow ) / resolution;
+		final double radius = ( drosophilaWidth / 2.0 + settings.refinementSearchWindow ) / resolution;
+
+		final FinalRealInterval windowBounds = alignment.inverse().estimateBounds(
+				new FinalRealInterval( new double[]{ - halfLength, - radius, - radius }, new double[]{ halfLength, radius, radius } ) );
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( int d : XYZ )
+		{
+			min[ d ] = ( long ) Math.floor( windowBounds.realMin( d ) );
+			max[ d ] = ( long ) Math.ceil( windowBounds.realMax( d ) );
+		}
+
+		final FinalInterval window = Intervals.intersect( new FinalInterval( min, max ), level );
+
+		if ( Intervals.isEmpty( window ) ) return ArrayImgs.bits( 0, 0, 0 );
+
+		// offset and threshold are determined on the whole level, as in the coarse registration
+		final IntensityHistogram intensityHistogram = new IntensityHistogram( level, 65535.0, 5.0 );
+		final PositionAndValue mode = intensityHistogram.getMode();
+		final PositionAndValue rightHandHalfMaximum = intensityHistogram.getRightHandHalfMaximum();
+		final double threshold = ( rightHandHalfMaximum.position - mode.position ) * settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
+
+		final RandomAccessibleInterval< T > intensityCorrected = Utils.copyAsArrayImg( Views.interval( level, window ) );
+
+		RefractiveIndexMismatchCorrections.correctIntensity( intensityCorrected, resolution, mode.position, settings.refractiveIndexIntensityCorrectionDecayLength );
+
+		final RandomAccessibleInterval< BitType > mask = BinaryMorphology.fillHoles( Thresholding.createMask( intensityCorrected, threshold ) );
+
+		final RandomAccessibleInterval< BitType > shapeMask = restrictToEmbryoShape( mask, alignment, halfLength, radius );
+
+		return ObjectExtraction.extractLargestObject( shapeMask );
+	}
+
+	/**
+	 * @return the mask without the voxels whose aligned position lies outside the cylinder
+	 * of the given half length and radius around the x-axis
+	 */
+	private static RandomAccessibleInterval< BitType > restrictToEmbryoShape( RandomAccessibleInterval< BitType > mask, AffineTransform3D alignment, double halfLength, double radius )
+	{
+		final int[] dimensions = FlatArrays.getDimensions( mask );
+		final long[] bits = FlatArrays.getPackedBits( mask );
+		final long[] restrictedBits = new long[ bits.length ];
+
+		final double[] position = new double[ 3 ];
+		final double[] aligned = new double[ 3 ];
+
+		for ( int z = 0, i = 0; z < dimensions[ Z ]; ++z )
+		{
+			for ( int y = 0; y < dimensions[ Y ]; ++y )
+			{
+				for ( int x = 0; x < dimensions[ X ]; ++x, ++i )
+				{
+					if ( ( ( bits[ i >>> 6 ] >>> ( i & 63 ) ) & 1L ) == 0 ) continue;
+
+					position[ X ] = mask.min( X ) + x;
+					position[ Y ] = mask.min( Y ) + y;
+					position[ Z ] = mask.min( Z ) + z;
+					alignment.apply( position, aligned );
+
+					if ( Math.abs( aligned[ X ] ) <= halfLength && aligned[ Y ] * aligned[ Y ] + aligned[ Z ] * aligned[ Z ] <= radius * radius )
+					{
+						restrictedBits[ i >>> 6 ] |= 1L << ( i & 63 );
+					}
+				}
+			}
+		}
+
+		return Views.translate(
+				ArrayImgs.bits( new LongArray( restrictedBits ), dimensions[ X ], dimensions[ Y ], dimensions[ Z ] ),
+				Intervals.minAsLongArray( mask ) );
+	}
+}
@@ -0,0 +1,507 @@
+package de.embl.cba.morphometrics.drosophila.shavenbaby;
+
+import de.embl.cba.morphometrics.ImageIO;
+import de.embl.cba.morphometrics.ImagePyramid;
+import de.embl.cba.morphometrics.RefractiveIndexMismatchCorrections;
+import de.embl.cba.morphometrics.StageCache;
+import de.embl.cba.morphometrics.Utils;
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static de.embl.cba.morphometrics.Constants.X;
+import static de.embl.cba.morphometrics.Constants.XYZ;
+import static de.embl.cba.morphometrics.Constants.Y;
+import static de.embl.cba.morphometrics.Constants.Z;
+import static de.embl.cba.morphometrics.ImageIO.openWithBioFormatsAtResolution;
+
+/**
+ * Registers a set of inputs for every combination of a grid of settings values.
+ *
+ * Each input is read only once, at the finest registration resolution of the grid and in the channel of the settings,
+ * when its first grid point starts, and it is released, together with its cached stage outputs, when its last grid point ends.
+ * All grid points of one input share its pyramid and the outputs of all stages
+ * that do not depend on the parameters that differ between the grid points.
+ * The combinations run in parallel, as far as the estimated memory of the read inputs and of the running registrations
+ * fits into the memory budget.
+ *
+ * Each row of the resulting table contains the input, the parameter values, the Euler angles and the centre of the
+ * registration, and the time of each stage.
+ */
+public class ShavenBabyParameterSweep
+{
+	// estimated memory of one registration, in units of the memory of the input at registration resolution
+	public static final int MEMORY_PER_REGISTRATION_IN_INPUT_SIZES = 8;
+	// estimated memory of one input, its pyramids and its cached stage outputs, in the same units
+	public static final int MEMORY_PER_INPUT_IN_INPUT_SIZES = 8;
+
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	public long memoryBudgetInBytes = Runtime.getRuntime().maxMemory() / 2;
+
+	private final ShavenBabyRegistrationSettings settings;
+	private final LinkedHashMap< String, List< Object > > grid;
+
+	public static class Row
+	{
+		public String input;
+		public LinkedHashMap< String, Object > parameters;
+		public ShavenBabyRegistrationResult result; // null if the registration failed
+		public double[] eulerAnglesInDegrees; // ZYX, i.e. yaw, pitch, roll
+		public double[] centre; // full resolution input micrometer coordinates of the registered origin
+	}
+
+	/**
+	 * @param settings values of all settings that are not part of the grid
+	 */
+	public ShavenBabyParameterSweep( ShavenBabyRegistrationSettings settings )
+	{
+		this.settings = settings;
+		this.grid = new LinkedHashMap<>();
+	}
+
+	/**
+	 * @param fieldName name of a public field of {@link ShavenBabyRegistrationSettings}, except for the channel,
+	 *                  as each input is read only once; channels are compared by one sweep per channel
+	 * @param values values of the field, of the type of the field
+	 */
+	public void addParameter( String fieldName, Object... values )
+	{
+		getField( fieldName );
+
+		if ( fieldName.equals( "shavenBabyChannelIndexOneBased" ) )
+		{
+			throw new IllegalArgumentException( "The channel cannot be varied, as each input is read only once: " + fieldName );
+		}
+
+		grid.put( fieldName, Arrays.asList( values ) );
+	}
+
+	public List< Row > run( List< String > inputPaths )
+	{
+		final List< ShavenBabyRegistrationSettings > gridSettings = createGridSettings();
+
+		final double registrationResolution = gridSettings.stream().mapToDouble( s -> s.registrationResolution ).min().getAsDouble();
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numThreads );
+		final Semaphore memory = new Semaphore( getMemoryBudgetInKiloBytes() );
+		final Admission admission = new Admission();
+		// registrations run roughly in the order of submission, thus only the stage outputs of the most recent ones need to be kept
+		final StageCache stageCache = new StageCache( 2 * numThreads );
+
+		final List< Row > rows = new ArrayList<>();
+		final List< Future< ? > > futures = new ArrayList<>();
+
+		for ( String inputPath : inputPaths )
+		{
+			final SweepInput input = new SweepInput( inputPath, gridSettings.size() );
+
+			for ( ShavenBabyRegistrationSettings pointSettings : gridSettings )
+			{
+				final Row row = new Row();
+				row.input = inputPath;
+				row.parameters = getParameters( pointSettings );
+				rows.add( row );
+
+				final long ticket = futures.size();
+
+				futures.add( executorService.submit( () ->
+				{
+					final int registrationMemory;
+
+					admission.await( ticket );
+
+					try
+					{
+						registrationMemory = input.estimateMemory( registrationResolution );
+						memory.acquireUninterruptibly( registrationMemory + input.getUnchargedInputMemory() );
+					}
+					finally
+					{
+						admission.advance();
+					}
+
+					try
+					{
+						if ( ! input.read( registrationResolution ) ) return;
+
+						final ShavenBabyRegistration registration = new ShavenBabyRegistration( pointSettings );
+						registration.setStageCache( stageCache );
+
+						final ImagePyramid< ? > pyramid = input.getPyramid( pointSettings.refractiveIndexScalingCorrectionFactor );
+						row.result = registration.computeTransform( pyramid );
+						row.eulerAnglesInDegrees = computeEulerAnglesInDegrees( row.result.transform, pyramid.getInputCalibration(), pointSettings.outputResolution );
+						row.centre = computeCentre( row.result.transform, pyramid.getInputCalibration(), input.getOrigin() );
+					}
+					catch ( RuntimeException e )
+					{
+						Utils.log( "Registration failed: " + inputPath + " " + row.parameters + ": " + e );
+					}
+					finally
+					{
+						memory.release( registrationMemory );
+						input.release( memory, stageCache );
+					}
+				} ) );
+			}
+		}
+
+		for ( Future< ? > future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				e.printStackTrace();
+			}
+		}
+
+		executorService.shutdown();
+
+		return rows;
+	}
+
+	private int getMemoryBudgetInKiloBytes()
+	{
+		return ( int ) Math.min( Integer.MAX_VALUE, memoryBudgetInBytes / 1024 );
+	}
+
+	/**
+	 * Lets the grid points acquire their memory strictly in the order of submission.
+	 *
+	 * Thus, while a grid point waits for memory, all earlier grid points are running,
+	 * and the inputs of all earlier grid points are released as soon as these finish.
+	 * As the memory of one input plus one registration fits into the budget, the sweep always proceeds.
+	 */
+	private static class Admission
+	{
+		private long next;
+
+		synchronized void await( long ticket )
+		{
+			while ( next != ticket )
+			{
+				try
+				{
+					wait();
+				}
+				catch ( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException( e );
+				}
+			}
+		}
+
+		synchronized void advance()
+		{
+			next++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * One input, which is read when its first grid point starts and released when its last grid point ends.
+	 *
+	 * From its first admitted grid point until it is released, the input, its pyramids and the stage outputs
+	 * derived from it are charged to the memory budget.
+	 */
+	private class SweepInput
+	{
+		final String path;
+		final Map< Double, ImagePyramid< ? > > pyramids;
+
+		int numRemainingGridPoints;
+		boolean isEstimated;
+		boolean isCharged;
+		boolean isRead;
+		ImagePlus imagePlus; // null if the input could not be read or is released
+		double[] origin; // position of the first full resolution voxel, in voxels of the read input
+		int inputMemory; // kilobytes
+		int registrationMemory; // kilobytes
+
+		SweepInput( String path, int numGridPoints )
+		{
+			this.path = path;
+			this.pyramids = new HashMap<>();
+			this.numRemainingGridPoints = numGridPoints;
+		}
+
+		/**
+		 * Estimates the memory from the metadata of the input, such that it can be charged before the input is read.
+		 *
+		 * @return the memory of one registration, in kilobytes
+		 */
+		synchronized int estimateMemory( double registrationResolution )
+		{
+			if ( ! isEstimated )
+			{
+				isEstimated = true;
+
+				final long inputSize = ImageIO.openSizeInBytesAtResolution( path, registrationResolution ) / 1024;
+
+				// one input and one registration must fit into the budget, otherwise the sweep could not proceed
+				inputMemory = ( int ) Math.min( getMemoryBudgetInKiloBytes() / 2, MEMORY_PER_INPUT_IN_INPUT_SIZES * inputSize );
+				registrationMemory = ( int ) Math.min( getMemoryBudgetInKiloBytes() / 2, MEMORY_PER_REGISTRATION_IN_INPUT_SIZES * inputSize );
+			}
+
+			return registrationMemory;
+		}
+
+		/**
+		 * @return the memory of the input, in kilobytes, if it is not yet charged, and 0 otherwise
+		 */
+		synchronized int getUnchargedInputMemory()
+		{
+			if ( isCharged ) return 0;
+
+			isCharged = true;
+
+			return inputMemory;
+		}
+
+		/**
+		 * @return whether the input could be read
+		 */
+		synchronized boolean read( double registrationResolution )
+		{
+			if ( ! isRead )
+			{
+				isRead = true;
+
+				Utils.log( "Reading: " + path + "..." );
+
+				imagePlus = openWithBioFormatsAtResolution( path, settings.shavenBabyChannelIndexOneBased - 1, registrationResolution );
+
+				if ( imagePlus == null )
+				{
+					Utils.log( "Error opening file: " + path );
+					return false;
+				}
+
+				origin = new double[]{
+						imagePlus.getCalibration().xOrigin,
+						imagePlus.getCalibration().yOrigin,
+						imagePlus.getCalibration().zOrigin };
+			}
+
+			return imagePlus != null;
+		}
+
+		synchronized double[] getOrigin()
+		{
+			return origin;
+		}
+
+		/**
+		 * @return the pyramid of the input, with the calibration corrected by the given refractive index scaling factor;
+		 * pyramids are shared by all grid points with the same factor
+		 */
+		synchronized ImagePyramid< ? > getPyramid( double refractiveIndexScalingCorrectionFactor )
+		{
+			return pyramids.computeIfAbsent( refractiveIndexScalingCorrectionFactor, factor -> createPyramid( imagePlus, factor ) );
+		}
+
+		synchronized void release( Semaphore memory, StageCache stageCache )
+		{
+			if ( --numRemainingGridPoints > 0 ) return;
+
+			for ( ImagePyramid< ? > pyramid : pyramids.values() )
+			{
+				stageCache.remove( ShavenBabyRegistration.getStageKeyPrefix( pyramid ) );
+			}
+
+			pyramids.clear();
+			imagePlus = null;
+
+			memory.release( inputMemory );
+		}
+	}
+
+	/**
+	 * @param transform from input voxel coordinates to registered voxel coordinates
+	 * @param inputCalibration
+	 * @param outputResolution
+	 * @return ZYX Euler angles of the rotation of the registration, in degrees
+	 */
+	public static double[] computeEulerAnglesInDegrees( AffineTransform3D transform, double[] inputCalibration, double outputResolution )
+	{
+		// rotation between input and registered micrometer coordinates
+		final double[][] rotation = new double[ 3 ][ 3 ];
+		for ( int i : XYZ )
+			for ( int j : XYZ )
+				rotation[ i ][ j ] = transform.get( i, j ) * outputResolution / inputCalibration[ j ];
+
+		return new double[]{
+				Math.toDegrees( Math.atan2( rotation[ Y ][ X ], rotation[ X ][ X ] ) ),
+				Math.toDegrees( Math.asin( Math.max( -1.0, Math.min( 1.0, - rotation[ Z ][ X ] ) ) ) ),
+				Math.toDegrees( Math.atan2( rotation[ Z ][ Y ], rotation[ Z ][ Z ] ) ) };
+	}
+
+	/**
+	 * @param transform from input voxel coordinates to registered voxel coordinates
+	 * @param inputCalibration
+	 * @param inputOrigin position of the first full resolution voxel, in input voxel coordinates,
+	 *                    see {@link ImageIO#openWithBioFormatsAtResolution}
+	 * @return the position of the registered origin in full resolution input micrometer coordinates
+	 */
+	public static double[] computeCentre( AffineTransform3D transform, double[] inputCalibration, double[] inputOrigin )
+	{
+		final double[] centre = new double[ 3 ];
+		transform.inverse().apply( new double[ 3 ], centre );
+
+		for ( int d : XYZ ) centre[ d ] = ( centre[ d ] - inputOrigin[ d ] ) * inputCalibration[ d ];
+
+		return centre;
+	}
+
+	public static void writeCsv( File file, List< Row > rows ) throws IOException
+	{
+		final Set< String > parameters = new LinkedHashSet<>();
+		final Set< String > stages = new LinkedHashSet<>();
+
+		for ( Row row : rows )
+		{
+			parameters.addAll( row.parameters.keySet() );
+			if ( row.result != null ) stages.addAll( row.result.stageTimesMillis.keySet() );
+		}
+
+		try ( PrintWriter writer = new PrintWriter( file ) )
+		{
+			final StringBuilder header = new StringBuilder( "path" );
+			for ( String parameter : parameters ) header.append( "," ).append( parameter );
+			header.append( ",yaw,pitch,roll,centreX,centreY,centreZ" );
+			for ( String stage : stages ) header.append( "," ).append( stage.replace( ' ', '_' ) ).append( "_ms" );
+			header.append( ",total_ms" );
+			writer.println( header );
+
+			for ( Row row : rows )
+			{
+				final StringBuilder line = new StringBuilder( "\"" + row.input + "\"" );
+				for ( String parameter : parameters ) line.append( "," ).append( row.parameters.get( parameter ) );
+
+				if ( row.result == null )
+				{
+					line.append( ",failed" );
+					writer.println( line );
+					continue;
+				}
+
+				for ( double angle : row.eulerAnglesInDegrees ) line.append( "," ).append( angle );
+				for ( double coordinate : row.centre ) line.append( "," ).append( coordinate );
+				for ( String stage : stages ) line.append( "," ).append( row.result.stageTimesMillis.getOrDefault( stage, 0L ) );
+				line.append( "," ).append( row.result.totalTimeMillis );
+				writer.println( line );
+			}
+		}
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	ImagePyramid< T > createPyramid( ImagePlus imagePlus, double refractiveIndexScalingCorrectionFactor )
+	{
+		final RandomAccessibleInterval< T > input = ImageJFunctions.wrap( imagePlus );
+
+		final double[] calibration = Utils.getCalibration( imagePlus );
+		RefractiveIndexMismatchCorrections.correctCalibration( calibration, refractiveIndexScalingCorrectionFactor );
+
+		return new ImagePyramid<>( input, calibration );
+	}
+
+	private List< ShavenBabyRegistrationSettings > createGridSettings()
+	{
+		List< ShavenBabyRegistrationSettings > gridSettings = new ArrayList<>();
+		gridSettings.add( settings.copy() );
+
+		for ( Map.Entry< String, List< Object > > parameter : grid.entrySet() )
+		{
+			final Field field = getField( parameter.getKey() );
+			final List< ShavenBabyRegistrationSettings > extended = new ArrayList<>();
+
+			for ( ShavenBabyRegistrationSettings pointSettings : gridSettings )
+			{
+				for ( Object value : parameter.getValue() )
+				{
+					final ShavenBabyRegistrationSettings copy = pointSettings.copy();
+
+					try
+					{
+						field.set( copy, value );
+					}
+					catch ( IllegalAccessException | IllegalArgumentException e )
+					{
+						throw new IllegalArgumentException( "Invalid value for " + parameter.getKey() + ": " + value, e );
+					}
+
+					extended.add( copy );
+				}
+			}
+
+			gridSettings = extended;
+		}
+
+		return gridSettings;
+	}
+
+	private LinkedHashMap< String, Object > getParameters( ShavenBabyRegistrationSettings pointSettings )
+	{
+		final LinkedHashMap< String, Object > parameters = new LinkedHashMap<>();
+
+		for ( String fieldName : grid.keySet() )
+		{
+			try
+			{
+				parameters.put( fieldName, getField( fieldName ).get( pointSettings ) );
+			}
+			catch ( IllegalAccessException e )
+			{
+				throw new IllegalArgumentException( e );
+			}
+		}
+
+		return parameters;
+	}
+
+	private static Field getField( String fieldName )
+	{
+		final Field field;
+
+		try
+		{
+			field = ShavenBabyRegistrationSettings.class.getField( fieldName );
+		}
+		catch ( NoSuchFieldException e )
+		{
+			throw new IllegalArgumentException( "No such settings field: " + fieldName );
+		}
+
+		if ( Modifier.isStatic( field.getModifiers() ) )
+		{
+			throw new IllegalArgumentException( "Static settings field cannot be varied: " + fieldName );
+		}
+
+		return field;
+	}
+}
@@ -7,38 +7,31 @@ import de.embl.cba.morphometrics.geometry.EllipsoidParameters;
 import de.embl.cba.morphometrics.geometry.Ellipsoids;
 import net.imagej.ops.OpService;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
-import net.imglib2.algorithm.morphology.distance.DistanceTransform;
-import net.imglib2.algorithm.neighborhood.HyperSphereShape;
-import net.imglib2.converter.Converters;
-import net.imglib2.histogram.Histogram1d;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegions;
-import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.algorithm.neighborhood.Shape;
-import net.imglib2.algorithm.morphology.Closing;
-
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+
 import net.imglib2.view.Views;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 import static de.embl.cba.morphometrics.Constants.X;
 import static de.embl.cba.morphometrics.Constants.XYZ;
 import static de.embl.cba.morphometrics.Constants.Z;
-import static de.embl.cba.morphometrics.Transforms.getScalingFactors;
 import static de.embl.cba.morphometrics.viewing.BdvImageViewer.show;
 import static java.lang.Math.toRadians;
 
@@ -47,26 +40,173 @@ public class ShavenBabyRegistration
 {
 
 	final ShavenBabyRegistrationSettings settings;
-	final OpService opService;
 
-	public ShavenBabyRegistration( ShavenBabyRegistrationSettings settings, OpService opService )
+	private ImagePyramid< FloatType > referencePyramid;
+	private AngularCrossCorrelation angularCrossCorrelation;
+	private double[] angularCrossCorrelationReference;
+	private ShavenBabyRegistrationResult result = new ShavenBabyRegistrationResult();
+	private StageCache stageCache;
+
+	/**
+	 * All stages run on in-project implementations, such that no SciJava context needs to be started.
+	 */
+	public ShavenBabyRegistration( ShavenBabyRegistrationSettings settings )
 	{
 		this.settings = settings;
-		this.opService = opService;
 	}
 
+	/**
+	 * @deprecated no stage uses ops anymore, use {@link #ShavenBabyRegistration( ShavenBabyRegistrationSettings )}
+	 */
+	@Deprecated
+	public ShavenBabyRegistration( ShavenBabyRegistrationSettings settings, OpService opService )
+	{
+		this( settings );
+	}
+
+	/**
+	 * Computes only the registration transform, without creating any images at the output resolution.
+	 *
+	 * @param input shaven baby channel
+	 * @param inputCalibration voxel size of the input (is refractive index corrected in place)
+	 * @return the transform from input voxel coordinates to registered voxel coordinates at the output resolution,
+	 * together with quality measures and stage timings
+	 */
 	public < T extends RealType< T > & NativeType< T > >
-	AffineTransform3D computeRegistration( RandomAccessibleInterval< T > input, double[] inputCalibration  )
+	ShavenBabyRegistrationResult computeTransform( RandomAccessibleInterval< T > input, double[] inputCalibration )
 	{
+		computeRegistration( input, inputCalibration );
 
-		AffineTransform3D registration = new AffineTransform3D();
+		return result;
+	}
+
+	/**
+	 * Memoises the stage outputs of {@link #computeRegistration( ImagePyramid )}, keyed by the settings they depend on,
+	 * such that registering the same pyramid again with changed settings only recomputes the stages downstream of the change.
+	 *
+	 * The same cache can be shared by several instances with different settings.
+	 *
+	 * @param stageCache may be null, in which case nothing is cached
+	 */
+	public void setStageCache( StageCache stageCache )
+	{
+		this.stageCache = stageCache;
+	}
 
-		double[] registrationCalibration = Utils.get3dDoubleArray( settings.registrationResolution );
+	/**
+	 * @return the common prefix of the keys of all stage outputs computed from the pyramid,
+	 * see {@link StageCache#remove( String )}
+	 */
+	public static String getStageKeyPrefix( ImagePyramid< ? > pyramid )
+	{
+		return "input=" + pyramid.getId() + ";";
+	}
 
+	/**
+	 * Records the quality measures and stage times of the following registrations into the given result,
+	 * e.g. into the one of an enclosing registration.
+	 */
+	void setResult( ShavenBabyRegistrationResult result )
+	{
+		this.result = result;
+	}
+
+	/**
+	 * @return the result of the last registration computed by this instance
+	 */
+	public ShavenBabyRegistrationResult getResult()
+	{
+		return result;
+	}
+
+	public < T extends RealType< T > & NativeType< T > >
+	AffineTransform3D computeRegistration( RandomAccessibleInterval< T > input, double[] inputCalibration  )
+	{
 		Utils.log( "Refractive index scaling correction..." );
 
 		RefractiveIndexMismatchCorrections.correctCalibration( inputCalibration, settings.refractiveIndexScalingCorrectionFactor );
 
+		return computeTransform( new ImagePyramid<>( input, inputCalibration ) ).transform.copy();
+	}
+
+	/**
+	 * Computes only the registration transform, including the refinement against the reference image, if any.
+	 *
+	 * @param pyramid pyramid of the shaven baby channel, with refractive index corrected input calibration
+	 * @return the transform from input voxel coordinates to registered voxel coordinates at the output resolution,
+	 * together with quality measures and stage timings
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	ShavenBabyRegistrationResult computeTransform( ImagePyramid< T > pyramid )
+	{
+		result = new ShavenBabyRegistrationResult();
+		final long startTime = System.currentTimeMillis();
+
+		AffineTransform3D registration = computeRegistration( pyramid );
+
+		if ( settings.referenceImage != null )
+		{
+			result.startStage( "reference refinement" );
+			registration = refineAgainstReference( pyramid, registration );
+		}
+
+		result.endStage();
+		result.transform = registration.copy();
+		result.totalTimeMillis = System.currentTimeMillis() - startTime;
+
+		return result;
+	}
+
+	/**
+	 * Maximises the normalised cross-correlation between the registered shaven baby channel and the reference image.
+	 *
+	 * @param pyramid
+	 * @param registration from input voxel coordinates to registered voxel coordinates at the output resolution
+	 * @return the refined registration
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	AffineTransform3D refineAgainstReference( ImagePyramid< T > pyramid, AffineTransform3D registration )
+	{
+		Utils.log( "Refinement against reference image..." );
+
+		if ( referencePyramid == null || referencePyramid.getInput() != settings.referenceImage )
+		{
+			referencePyramid = new ImagePyramid<>( settings.referenceImage, Utils.get3dDoubleArray( settings.outputResolution ) );
+		}
+
+		return RigidRefinement.refine( pyramid, referencePyramid, registration, settings.referenceRefinementResolutions, settings.referenceRefinementMaxIterations );
+	}
+
+	/**
+	 * @param pyramid pyramid of the shaven baby channel, with refractive index corrected input calibration
+	 * @return transformation from input voxel coordinates to registered voxel coordinates at the output resolution
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	AffineTransform3D computeRegistration( ImagePyramid< T > pyramid )
+	{
+		if ( settings.coarseToFine )
+		{
+			final CoarseToFineRegistration coarseToFineRegistration = new CoarseToFineRegistration( settings );
+			coarseToFineRegistration.setStageCache( stageCache );
+			return coarseToFineRegistration.computeRegistration( pyramid, result );
+		}
+
+		AffineTransform3D registration = new AffineTransform3D();
+
+		final double[] registrationCalibration = Utils.get3dDoubleArray( settings.registrationResolution );
+
+		final double[] inputCalibration = pyramid.getInputCalibration();
+
+		/**
+		 * Keys of the stage outputs, each comprising the settings of the stage and of all upstream stages
+		 */
+
+		final String histogramKey = getStageKeyPrefix( pyramid ) + "registrationResolution=" + settings.registrationResolution;
+		final String intensityCorrectionKey = histogramKey + ";decayLength=" + settings.refractiveIndexIntensityCorrectionDecayLength;
+		final String thresholdKey = intensityCorrectionKey + ";threshold=" + settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
+		final String maskKey = thresholdKey + ";closingRadius=" + settings.closingRadius;
+		final String centralObjectKey = maskKey + ";seeds=" + settings.watershedSeedsGlobalDistanceThreshold + "," + settings.watershedSeedsLocalMaximaDistanceThreshold;
+
 
 		/**
 		 *  Down-sampling to registration resolution
@@ -74,8 +214,9 @@ public class ShavenBabyRegistration
 
 		
 		Utils.log( "Down-sampling to registration resolution..." );
+		result.startStage( "down-sampling" );
 
-		final RandomAccessibleInterval< T > downscaled = Algorithms.createIsotropicArrayImg( input, getScalingFactors( inputCalibration, settings.registrationResolution ) );
+		final RandomAccessibleInterval< T > downscaled = pyramid.get( settings.registrationResolution );
 
 		if ( settings.showIntermediateResults ) show( downscaled, "at registration resolution", null, registrationCalibration, false );
 
@@ -86,27 +227,34 @@ public class ShavenBabyRegistration
 
 
 		Utils.log( "Computing offset and threshold..." );
+		result.startStage( "threshold" );
 
-		final IntensityHistogram intensityHistogram = new IntensityHistogram( downscaled, 65535.0, 5.0 );
+		final IntensityHistogram intensityHistogram = cached( "histogram", histogramKey, () -> new IntensityHistogram( downscaled, 65535.0, 5.0 ) );
 
-		PositionAndValue mode = intensityHistogram.getMode();
+		final PositionAndValue mode = intensityHistogram.getMode();
 
 		final PositionAndValue rightHandHalfMaximum = intensityHistogram.getRightHandHalfMaximum();
 
-		double thresholdAfterIntensityCorrection = ( rightHandHalfMaximum.position - mode.position ) * settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
+		final double thresholdAfterIntensityCorrection = ( rightHandHalfMaximum.position - mode.position ) * settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
 
 		Utils.log( "Offset: " + mode.position );
 		Utils.log( "Threshold: " + ( thresholdAfterIntensityCorrection + mode.position ) );
 
+		result.offset = mode.position;
+		result.threshold = thresholdAfterIntensityCorrection + mode.position;
+
 		/**
 		 *  Refractive index corrections
 		 */
 		
 		Utils.log( "Refractive index intensity correction..." );
 
-		final RandomAccessibleInterval< T > intensityCorrected = Utils.copyAsArrayImg( downscaled );
-
-		RefractiveIndexMismatchCorrections.correctIntensity( intensityCorrected, registrationCalibration[ Z ], mode.position, settings.refractiveIndexIntensityCorrectionDecayLength );
+		final RandomAccessibleInterval< T > intensityCorrected = cached( "intensity correction", intensityCorrectionKey, () ->
+		{
+			final RandomAccessibleInterval< T > corrected = Utils.copyAsArrayImg( downscaled );
+			RefractiveIndexMismatchCorrections.correctIntensity( corrected, registrationCalibration[ Z ], mode.position, settings.refractiveIndexIntensityCorrectionDecayLength );
+			return corrected;
+		} );
 
 		if ( settings.showIntermediateResults ) show( intensityCorrected, "intensity corrected", null, registrationCalibration, false );
 
@@ -115,7 +263,26 @@ public class ShavenBabyRegistration
 		 * Create mask
 		 */
 
-		RandomAccessibleInterval< BitType > mask = createMask( intensityCorrected, thresholdAfterIntensityCorrection );
+		result.startStage( "mask" );
+
+		final ThresholdedMask thresholdedMask = cached( "threshold", thresholdKey, () -> Thresholding.threshold( intensityCorrected, thresholdAfterIntensityCorrection, true ) );
+
+		result.numForegroundVoxels = thresholdedMask.numForegroundVoxels;
+
+
+		/**
+		 * Restrict all further processing to the foreground
+		 *
+		 * Coordinates are kept, thus all transforms stay the same as for the full image.
+		 */
+
+		final long[] centralPosition = getCentralPosition( intensityCorrected );
+
+		final FinalInterval foregroundInterval = createForegroundInterval( thresholdedMask, centralPosition, intensityCorrected );
+
+		Utils.log( "Foreground interval: " + Arrays.toString( Intervals.dimensionsAsLongArray( foregroundInterval ) ) );
+
+		final RandomAccessibleInterval< BitType > mask = cached( "mask", maskKey, () -> createMask( thresholdedMask, foregroundInterval ) );
 
 		if ( settings.showIntermediateResults ) show( mask, "mask", null, registrationCalibration, false );
 
@@ -124,7 +291,9 @@ public class ShavenBabyRegistration
 		 * Morphological closing
 		 */
 
-		RandomAccessibleInterval< BitType > closed = createClosedImage( mask );
+		result.startStage( "closing" );
+
+		final RandomAccessibleInterval< BitType > closed = cached( "closing", maskKey, () -> createClosedImage( mask ) );
 
 		if ( settings.showIntermediateResults ) show( closed, "closed", null, registrationCalibration, false );
 
@@ -135,12 +304,9 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Distance transform..." );
+		result.startStage( "distance transform" );
 
-		final RandomAccessibleInterval< DoubleType > doubleBinary = Converters.convert( closed, ( i, o ) -> o.set( i.get() ? Double.MAX_VALUE : 0 ), new DoubleType() );
-
-		final RandomAccessibleInterval< DoubleType > distance = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( doubleBinary ) );
-
-		DistanceTransform.transform( doubleBinary, distance, DistanceTransform.DISTANCE_TYPE.EUCLIDIAN, 1.0D );
+		final RandomAccessibleInterval< FloatType > distance = cached( "distance transform", maskKey, () -> DistanceTransforms.computeSquaredDistancesToBackground( closed, Utils.get3dDoubleArray( 1.0 ) ) );
 
 		if ( settings.showIntermediateResults )
 			show( distance, "distance transform", null, registrationCalibration, false );
@@ -149,7 +315,7 @@ public class ShavenBabyRegistration
 		 * Watershed seeds
 		 */
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg = createWatershedSeeds( registrationCalibration, distance, closed );
+		final RandomAccessibleInterval< IntType > seeds = cached( "watershed seeds", centralObjectKey, () -> createWatershedSeeds( registrationCalibration, distance, closed ) );
 
 
 		/**
@@ -157,19 +323,10 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Watershed..." );
+		result.startStage( "watershed" );
 
-		// prepare result label image
-		final Img< IntType > watershedLabelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
-		final ImgLabeling< Integer, IntType > watershedLabeling = new ImgLabeling<>( watershedLabelImg );
-
-		opService.image().watershed(
-				watershedLabeling,
-				Utils.invertedView( distance ),
-				seedsLabelImg,
-				false,
-				false );
-
-		Utils.applyMask( watershedLabelImg, closed );
+		// only the central embryo is needed, thus the flooding can stop as soon as it is complete
+		final RandomAccessibleInterval< IntType > watershedLabelImg = cached( "watershed", centralObjectKey, () -> Watershed.computeSeededWatershed( distance, seeds, closed, centralPosition ) );
 
 		if ( settings.showIntermediateResults ) show( watershedLabelImg, "watershed", null, registrationCalibration, false );
 
@@ -180,9 +337,7 @@ public class ShavenBabyRegistration
 
 		Utils.log( "Get central embryo..." );
 
-		final LabelRegion< Integer > centralObjectRegion = getCentralObjectLabelRegion( watershedLabeling );
-
-		final Img< BitType > centralObjectMask = createBitTypeMaskFromLabelRegion( centralObjectRegion, Intervals.dimensionsAsLongArray( downscaled ) );
+		final RandomAccessibleInterval< BitType > centralObjectMask = cached( "central object", centralObjectKey, () -> ObjectExtraction.extractObjectAt( watershedLabelImg, centralPosition ) );
 
 		if ( settings.showIntermediateResults )
 			show( centralObjectMask, "central object", null, registrationCalibration, false );
@@ -192,14 +347,13 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Fit ellipsoid..." );
+		result.startStage( "ellipsoid" );
 
-		final EllipsoidParameters ellipsoidParameters = Ellipsoids.computeParametersFromBinaryImage( centralObjectMask );
-
-		registration.preConcatenate( Ellipsoids.createAlignmentTransform( ellipsoidParameters ) );
+		final EllipsoidParameters ellipsoidParameters = cached( "ellipsoid", centralObjectKey, () -> Ellipsoids.computeParametersFromBinaryImage( centralObjectMask ) );
 
-		final RandomAccessibleInterval yawAlignedMask = Utils.copyAsArrayImg( Transforms.createTransformedView( centralObjectMask, registration, new NearestNeighborInterpolatorFactory() ) );
+		for ( int d : XYZ ) result.ellipsoidRadii[ d ] = ellipsoidParameters.radii[ d ] * settings.registrationResolution;
 
-		final RandomAccessibleInterval yawAlignedIntensities = Utils.copyAsArrayImg( Transforms.createTransformedView( downscaled, registration ) );
+		registration.preConcatenate( Ellipsoids.createAlignmentTransform( ellipsoidParameters ) );
 
 
 		/**
@@ -207,8 +361,11 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Computing long axis orientation..." );
+		result.startStage( "orientation" );
+
+		final AffineTransform3D ellipsoidAlignment = registration.copy();
 
-		final AffineTransform3D orientationTransform = computeOrientationTransform( yawAlignedMask, yawAlignedIntensities, settings.registrationResolution );
+		final AffineTransform3D orientationTransform = cached( "orientation", centralObjectKey, () -> computeOrientationTransform( centralObjectMask, Views.interval( downscaled, foregroundInterval ), ellipsoidAlignment, settings.registrationResolution ) );
 
 		registration = registration.preConcatenate( orientationTransform );
 
@@ -218,28 +375,41 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Computing roll transform..." );
+		result.startStage( "roll" );
 
-		final RandomAccessibleInterval yawAndOrientationAlignedMask = Utils.copyAsArrayImg( Transforms.createTransformedView( centralObjectMask, registration, new NearestNeighborInterpolatorFactory() ) );
+		if ( settings.rollAngleComputationMethod.equals( ShavenBabyRegistrationSettings.ANGULAR_PROFILE_ROLL_ANGLE ) )
+		{
+			final AffineTransform3D rollTransform = computeRollTransformFromAngularProfile( centralObjectMask, registration );
 
-		final CentroidsParameters centroidsParameters = Utils.computeCentroidsParametersAlongXAxis( yawAndOrientationAlignedMask, settings.registrationResolution, settings.rollAngleMaxDistanceToCenter );
+			registration = registration.preConcatenate( rollTransform );
 
-		if ( settings.showIntermediateResults )
-			Plots.plot( centroidsParameters.axisCoordinates, centroidsParameters.angles, "x", "angle" );
-		if ( settings.showIntermediateResults )
-			Plots.plot( centroidsParameters.axisCoordinates, centroidsParameters.distances, "x", "distance" );
-		if ( settings.showIntermediateResults )
-			Plots.plot( centroidsParameters.axisCoordinates, centroidsParameters.numVoxels, "x", "numVoxels" );
-		if ( settings.showIntermediateResults )
-			show( yawAndOrientationAlignedMask, "yaw and orientation aligned mask", centroidsParameters.centroids, registrationCalibration, false );
+			if ( settings.showIntermediateResults )
+				show( Transforms.createTransformedView( centralObjectMask, registration, new NearestNeighborInterpolatorFactory() ), "yaw and roll aligned mask", null, registrationCalibration, false );
+		}
+		else
+		{
+			final CentroidsParameters centroidsParameters = AxisProfiles.computeCentroidsParametersAlongX( centralObjectMask, registration, settings.registrationResolution, settings.rollAngleMaxDistanceToCenter );
 
-		final AffineTransform3D rollTransform = computeRollTransform( centroidsParameters, settings );
+			if ( settings.showIntermediateResults )
+				Plots.plot( centroidsParameters.axisCoordinates, centroidsParameters.angles, "x", "angle" );
+			if ( settings.showIntermediateResults )
+				Plots.plot( centroidsParameters.axisCoordinates, centroidsParameters.distances, "x", "distance" );
+			if ( settings.showIntermediateResults )
+				Plots.plot( centroidsParameters.axisCoordinates, centroidsParameters.numVoxels, "x", "numVoxels" );
+			if ( settings.showIntermediateResults )
+				show( Transforms.createTransformedView( centralObjectMask, registration, new NearestNeighborInterpolatorFactory() ), "yaw and orientation aligned mask", centroidsParameters.centroids, registrationCalibration, false );
 
-		registration = registration.preConcatenate( rollTransform );
+			result.rollAngle = computeRollAngle( centroidsParameters, settings.rollAngleMinDistanceToAxis, settings.rollAngleMinDistanceToCenter, settings.rollAngleMaxDistanceToCenter );
 
-		ArrayList< RealPoint > transformedCentroids = createTransformedCentroidPointList( centroidsParameters, rollTransform );
+			Utils.log( "Roll angle " + result.rollAngle );
 
-		if ( settings.showIntermediateResults )
-			show( Transforms.createTransformedView( centralObjectMask, registration, new NearestNeighborInterpolatorFactory() ), "yaw and roll aligned mask", transformedCentroids, registrationCalibration, false );
+			final AffineTransform3D rollTransform = createRollTransform( result.rollAngle );
+
+			registration = registration.preConcatenate( rollTransform );
+
+			if ( settings.showIntermediateResults )
+				show( Transforms.createTransformedView( centralObjectMask, registration, new NearestNeighborInterpolatorFactory() ), "yaw and roll aligned mask", createTransformedCentroidPointList( centroidsParameters, rollTransform ), registrationCalibration, false );
+		}
 
 		/**
 		 * Compute final registration
@@ -254,79 +424,92 @@ public class ShavenBabyRegistration
 
 	}
 
-	public RandomAccessibleInterval< BitType > createClosedImage( RandomAccessibleInterval< BitType > mask )
+	private < V > V cached( String stage, String key, Supplier< V > computation )
 	{
-		RandomAccessibleInterval< BitType > closed = Utils.copyAsArrayImg( mask );
+		if ( stageCache == null ) return computation.get();
 
+		return stageCache.get( stage, key, computation );
+	}
+
+	public RandomAccessibleInterval< BitType > createClosedImage( RandomAccessibleInterval< BitType > mask )
+	{
 		if ( settings.closingRadius > 0 )
 		{
 			Utils.log( "Morphological closing...");
-			Shape closingShape = new HyperSphereShape( ( int ) ( settings.closingRadius / settings.registrationResolution ) );
-			Closing.close( Views.extendBorder( mask ), Views.iterable( closed ), closingShape, 1 );
+			return BinaryMorphology.closeWithDistanceTransform( mask, settings.closingRadius, Utils.get3dDoubleArray( settings.registrationResolution ) );
 		}
 
-		return closed;
+		return mask;
 	}
 
-	public < T extends RealType< T > & NativeType< T > >
-	RandomAccessibleInterval< BitType > createMask( RandomAccessibleInterval< T > downscaled, double threshold )
+	public RandomAccessibleInterval< BitType > createMask( ThresholdedMask thresholdedMask, Interval foregroundInterval )
 	{
 		Utils.log( "Creating mask...");
 
-		RandomAccessibleInterval< BitType > mask = Converters.convert( downscaled, ( i, o ) -> o.set( i.getRealDouble() > threshold ? true : false ), new BitType() );
+		RandomAccessibleInterval< BitType > mask = Views.interval( thresholdedMask.mask, foregroundInterval );
 
-		mask = opService.morphology().fillHoles( mask );
+		mask = BinaryMorphology.fillHoles( mask );
 
 		return mask;
 	}
 
-	public < T extends RealType< T > & NativeType< T > > double getThreshold( RandomAccessibleInterval< T > downscaled )
+	/**
+	 * The bounding box of the foreground is extended to contain the central position,
+	 * and padded by more than the closing radius, such that neither hole filling, closing nor distance transform
+	 * see any difference to the full image. Empty masks yield the full image.
+	 */
+	private FinalInterval createForegroundInterval( ThresholdedMask thresholdedMask, long[] centralPosition, Interval image )
 	{
+		if ( thresholdedMask.numForegroundVoxels == 0 ) return new FinalInterval( image );
 
-		double threshold = 0;
+		final long padding = ( long ) Math.ceil( settings.closingRadius / settings.registrationResolution ) + 1;
 
-		if ( settings.thresholdModality.equals( ShavenBabyRegistrationSettings.HUANG_AUTO_THRESHOLD ) )
-		{
-			final Histogram1d< T > histogram = opService.image().histogram( Views.iterable( downscaled ) );
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
 
-			double huang = opService.threshold().huang( histogram ).getRealDouble();
-			double yen = opService.threshold().yen( histogram ).getRealDouble();
-
-			threshold = huang;
-		}
-		else
+		for ( int d : XYZ )
 		{
-			threshold= settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
+			min[ d ] = Math.min( thresholdedMask.boundingBoxMin[ d ], centralPosition[ d ] ) - padding;
+			max[ d ] = Math.max( thresholdedMask.boundingBoxMax[ d ], centralPosition[ d ] ) + padding;
 		}
-		return threshold;
+
+		return Intervals.intersect( new FinalInterval( min, max ), image );
 	}
 
-	public ImgLabeling< Integer, IntType > createWatershedSeeds( double[] registrationCalibration, RandomAccessibleInterval< DoubleType > distance, RandomAccessibleInterval< BitType > mask )
+	public RandomAccessibleInterval< IntType > createWatershedSeeds( double[] registrationCalibration, RandomAccessibleInterval< FloatType > distance, RandomAccessibleInterval< BitType > mask )
 	{
 		Utils.log( "Seeds for watershed...");
 
 		double globalDistanceThreshold = Math.pow( settings.watershedSeedsGlobalDistanceThreshold / settings.registrationResolution, 2 );
 		double localMaximaDistanceThreshold = Math.pow( settings.watershedSeedsLocalMaximaDistanceThreshold / settings.registrationResolution, 2 );
 
-		final RandomAccessibleInterval< BitType >  seeds = Utils.createSeeds(
+		final RandomAccessibleInterval< IntType > seeds = WatershedSeeds.createSeedLabels(
 				distance,
-				new HyperSphereShape( 1 ),
 				globalDistanceThreshold,
 				localMaximaDistanceThreshold );
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg = Utils.createLabelImg( seeds );
-
-		if ( settings.showIntermediateResults ) show( Utils.asIntImg( seedsLabelImg ), "watershed seeds", null, registrationCalibration, false );
-		return seedsLabelImg;
+		if ( settings.showIntermediateResults ) show( seeds, "watershed seeds", null, registrationCalibration, false );
+		return seeds;
 	}
 
-	public AffineTransform3D computeOrientationTransform( RandomAccessibleInterval yawAlignedMask, RandomAccessibleInterval yawAlignedIntensities, double calibration )
+	/**
+	 * @param mask
+	 * @param intensities
+	 * @param yawAlignment transformation from voxel coordinates of mask and intensities to the yaw aligned coordinates
+	 * @param calibration
+	 * @return rotation that puts the end with the brighter average intensity along the long axis to positive x
+	 */
+	public < T extends RealType< T > > AffineTransform3D computeOrientationTransform(
+			RandomAccessibleInterval< BitType > mask,
+			RandomAccessibleInterval< T > intensities,
+			AffineTransform3D yawAlignment,
+			double calibration )
 	{
-		final CoordinatesAndValues coordinatesAndValues = Utils.computeAverageIntensitiesAlongAxis( yawAlignedIntensities, yawAlignedMask, X, calibration );
+		final CoordinatesAndValues coordinatesAndValues = AxisProfiles.computeAverageIntensitiesAlongX( intensities, mask, yawAlignment, calibration );
 
 		if ( settings.showIntermediateResults ) Plots.plot( coordinatesAndValues.coordinates, coordinatesAndValues.values, "x", "average intensity" );
 
-		double maxLoc = Utils.computeMaxLoc( coordinatesAndValues.coordinates, coordinatesAndValues.values );
+		double maxLoc = Utils.computeMaxLoc( coordinatesAndValues.coordinates, coordinatesAndValues.values, null );
 
 		AffineTransform3D affineTransform3D = new AffineTransform3D();
 
@@ -354,6 +537,57 @@ public class ShavenBabyRegistration
 
 		Utils.log( "Roll angle " + rollAngle );
 
+		return createRollTransform( rollAngle );
+	}
+
+	/**
+	 * Resamples the aligned mask into cylindrical coordinates and finds the roll angle
+	 * by circular cross-correlation of its angular profile with the reference angular profile.
+	 *
+	 * @param mask
+	 * @param alignment from mask voxel coordinates to the yaw and orientation aligned coordinate system
+	 * @return
+	 */
+	public AffineTransform3D computeRollTransformFromAngularProfile( RandomAccessibleInterval< BitType > mask, AffineTransform3D alignment )
+	{
+		final double[] profile = AngularProfiles.computeAngularProfile(
+				mask,
+				alignment,
+				settings.registrationResolution,
+				settings.rollAngleNumAngles,
+				settings.rollAngleMinDistanceToCenter,
+				settings.rollAngleMaxDistanceToCenter,
+				ShavenBabyRegistrationSettings.drosophilaWidth );
+
+		result.rollAngle = getAngularCrossCorrelation().computeShift( profile );
+
+		Utils.log( "Roll angle " + result.rollAngle );
+
+		return createRollTransform( result.rollAngle );
+	}
+
+	private synchronized AngularCrossCorrelation getAngularCrossCorrelation()
+	{
+		// the Fourier transform of the reference is computed once for all embryos registered with the same reference
+		if ( angularCrossCorrelation == null || angularCrossCorrelationReference != settings.rollAngleReferenceProfile )
+		{
+			final double[] referenceProfile = settings.rollAngleReferenceProfile != null
+					? settings.rollAngleReferenceProfile
+					: AngularProfiles.createNegativeZReferenceProfile( settings.rollAngleNumAngles );
+
+			angularCrossCorrelation = new AngularCrossCorrelation( referenceProfile );
+			angularCrossCorrelationReference = settings.rollAngleReferenceProfile;
+		}
+
+		return angularCrossCorrelation;
+	}
+
+	/**
+	 * @param rollAngle in degrees
+	 * @return rotation around the x-axis that undoes the roll angle
+	 */
+	public static AffineTransform3D createRollTransform( double rollAngle )
+	{
 		AffineTransform3D rollTransform = new AffineTransform3D();
 
 		rollTransform.rotate( X, - toRadians( rollAngle ) );
@@ -401,21 +635,6 @@ public class ShavenBabyRegistration
 		return transform;
 	}
 
-	private Img< BitType > createBitTypeMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
-	{
-		final Img< BitType > centralObjectImg = ArrayImgs.bits( dimensions );
-
-		final Cursor< Void > regionCursor = centralObjectRegion.cursor();
-		final net.imglib2.RandomAccess< BitType > access = centralObjectImg.randomAccess();
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( true );
-		}
-		return centralObjectImg;
-	}
-
 	private Img< UnsignedByteType > createUnsignedByteTypeMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
 	{
 		final Img< UnsignedByteType > centralObjectImg = ArrayImgs.unsignedBytes( dimensions );
@@ -432,21 +651,11 @@ public class ShavenBabyRegistration
 	}
 
 
-	private LabelRegion< Integer > getCentralObjectLabelRegion( ImgLabeling< Integer, IntType > labeling )
-	{
-		int centralLabel = getCentralLabel( labeling );
-
-		final LabelRegions< Integer > labelRegions = new LabelRegions<>( labeling );
-
-		return labelRegions.getLabelRegion( centralLabel );
-	}
-
-	private static int getCentralLabel( ImgLabeling< Integer, IntType > labeling )
+	private static long[] getCentralPosition( RandomAccessibleInterval< ? > rai )
 	{
-		final net.imglib2.RandomAccess< LabelingType< Integer > > labelingRandomAccess = labeling.randomAccess();
-		for ( int d : XYZ ) labelingRandomAccess.setPosition( labeling.dimension( d ) / 2, d );
-		int centralIndex = labelingRandomAccess.get().getIndex().getInteger();
-		return labeling.getMapping().labelsAtIndex( centralIndex ).iterator().next();
+		final long[] position = new long[ rai.numDimensions() ];
+		for ( int d : XYZ ) position[ d ] = rai.min( d ) + rai.dimension( d ) / 2;
+		return position;
 	}
 
 	//
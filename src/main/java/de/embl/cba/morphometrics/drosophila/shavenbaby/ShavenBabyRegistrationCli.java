@@ -0,0 +1,260 @@
+package de.embl.cba.morphometrics.drosophila.shavenbaby;
+
+import de.embl.cba.morphometrics.Prefetcher;
+import de.embl.cba.morphometrics.Utils;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Headless entry point for batch runs, e.g. on cluster nodes without a display.
+ *
+ * Usage: inputDirectoryOrGlob outputDirectory [settingsFile] [numThreads]
+ *
+ * The input is either one file, a directory, of which all files ending with one of
+ * {@link ShavenBabyRegistrationCommand#fileNameEndsWith} are registered,
+ * or a glob on the file names of a directory, e.g. "/data/E3NWT-*.czi".
+ * The registered images and their projections are saved into the output directory.
+ *
+ * The settings file is a properties file, whose keys are the names of public fields of {@link ShavenBabyRegistrationSettings};
+ * array values are comma separated. The key "referenceFile" specifies a reference image, see
+ * {@link ShavenBabyRegistrationCommand#setReferenceImage}. The key "useTransformCache" enables reading and writing
+ * cached transforms next to the input files, see {@link de.embl.cba.morphometrics.TransformCache}; by default, nothing
+ * is written outside of the output directory.
+ *
+ * No SciJava context is started, see {@link ShavenBabyRegistration#ShavenBabyRegistration( ShavenBabyRegistrationSettings )},
+ * and no user interface is shown. ImageJ 1 is still used for logging and for saving the images,
+ * which works without a display, as java.awt.headless is set.
+ * The exit code is 1 if any input could not be registered.
+ */
+public class ShavenBabyRegistrationCli
+{
+	public static final String REFERENCE_FILE = "referenceFile";
+	public static final String USE_TRANSFORM_CACHE = "useTransformCache";
+
+	public static void main( String... args )
+	{
+		if ( args.length < 2 || args.length > 4 )
+		{
+			System.err.println( "Usage: inputDirectoryOrGlob outputDirectory [settingsFile] [numThreads]" );
+			System.exit( 1 );
+		}
+
+		System.setProperty( "java.awt.headless", "true" );
+
+		if ( args.length > 3 )
+		{
+			// must be set before the first parallel stream is used
+			System.setProperty( "java.util.concurrent.ForkJoinPool.common.parallelism", "" + Math.max( 1, Integer.parseInt( args[ 3 ] ) - 1 ) );
+		}
+
+		try
+		{
+			final Properties properties = args.length > 2 ? readProperties( new File( args[ 2 ] ) ) : new Properties();
+
+			final ShavenBabyRegistrationSettings settings = createSettings( properties );
+			final boolean useTransformCache = Boolean.parseBoolean( properties.getProperty( USE_TRANSFORM_CACHE, "false" ).trim() );
+
+			final int numFailures = run( args[ 0 ], new File( args[ 1 ] ), settings, useTransformCache );
+
+			System.exit( numFailures > 0 ? 1 : 0 );
+		}
+		catch ( IOException | RuntimeException e )
+		{
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+
+	/**
+	 * @param inputDirectoryOrGlob
+	 * @param outputDirectory
+	 * @param settings
+	 * @param useTransformCache whether to read and write cached transforms next to the input files
+	 * @return the number of inputs that could not be registered
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	int run( String inputDirectoryOrGlob, File outputDirectory, ShavenBabyRegistrationSettings settings, boolean useTransformCache ) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+
+		final ShavenBabyRegistrationCommand< T > command = new ShavenBabyRegistrationCommand<>();
+		command.setSettings( settings );
+		command.useTransformCache = useTransformCache;
+
+		final List< String > inputPaths = getInputPaths( inputDirectoryOrGlob, command );
+
+		if ( inputPaths.isEmpty() ) throw new IOException( "No input files: " + inputDirectoryOrGlob );
+
+		if ( ! outputDirectory.exists() && ! outputDirectory.mkdirs() ) throw new IOException( "Could not create output directory: " + outputDirectory );
+
+		final ShavenBabyRegistration registration = new ShavenBabyRegistration( settings );
+
+		final Prefetcher< ShavenBabyRegistrationCommand.InputImages< T > > prefetcher = new Prefetcher<>(
+				inputPaths,
+				command::openInputImages,
+				ShavenBabyRegistrationCommand.InputImages::sizeInBytes,
+				command.numFilesToPrefetch,
+				( long ) ( Runtime.getRuntime().maxMemory() * ShavenBabyRegistrationCommand.prefetchMemoryFraction ) );
+
+		int numFailures = 0;
+
+		try
+		{
+			while ( prefetcher.hasNext() )
+			{
+				final String inputPath = prefetcher.nextPath();
+				final ShavenBabyRegistrationCommand.InputImages< T > inputImages = prefetcher.next();
+
+				if ( inputImages == null )
+				{
+					Utils.log( "Error opening file: " + inputPath );
+					numFailures++;
+					continue;
+				}
+
+				try
+				{
+					command.registerAndSave( inputPath, inputImages, registration, new File( outputDirectory, new File( inputPath ).getName() ).getPath() );
+				}
+				catch ( RuntimeException e )
+				{
+					Utils.log( "Registration failed: " + inputPath + ": " + e );
+					numFailures++;
+				}
+			}
+		}
+		finally
+		{
+			prefetcher.close();
+		}
+
+		Utils.log( "Done: " + ( inputPaths.size() - numFailures ) + " of " + inputPaths.size() + " files registered in "
+				+ ( System.currentTimeMillis() - start ) + " ms" );
+
+		return numFailures;
+	}
+
+	public static List< String > getInputPaths( String inputDirectoryOrGlob, ShavenBabyRegistrationCommand< ? > command )
+	{
+		final File input = new File( inputDirectoryOrGlob );
+		final List< String > inputPaths = new ArrayList<>();
+
+		if ( input.isFile() )
+		{
+			inputPaths.add( input.getPath() );
+			return inputPaths;
+		}
+
+		final File directory = input.isDirectory() ? input : input.getAbsoluteFile().getParentFile();
+		final PathMatcher matcher = input.isDirectory() ? null : FileSystems.getDefault().getPathMatcher( "glob:" + input.getName() );
+
+		final String[] files = directory.list();
+		if ( files == null ) return inputPaths;
+		Arrays.sort( files );
+
+		for ( String file : files )
+		{
+			final boolean accept = matcher == null ? command.acceptFile( command.fileNameEndsWith, file ) : matcher.matches( Paths.get( file ) );
+
+			if ( accept && new File( directory, file ).isFile() )
+			{
+				inputPaths.add( new File( directory, file ).getPath() );
+			}
+		}
+
+		return inputPaths;
+	}
+
+	/**
+	 * @return the settings of the user interface of {@link ShavenBabyRegistrationCommand}, without showing any intermediate results
+	 */
+	public static ShavenBabyRegistrationSettings createDefaultSettings()
+	{
+		final ShavenBabyRegistrationSettings settings = new ShavenBabyRegistrationSettings();
+		settings.backgroundIntensity = 0;
+		settings.showIntermediateResults = false;
+		return settings;
+	}
+
+	public static Properties readProperties( File file ) throws IOException
+	{
+		final Properties properties = new Properties();
+
+		try ( InputStream inputStream = new FileInputStream( file ) )
+		{
+			properties.load( inputStream );
+		}
+
+		return properties;
+	}
+
+	/**
+	 * @param properties the contents of a settings file
+	 * @return the default settings, with the values of the properties
+	 */
+	public static ShavenBabyRegistrationSettings createSettings( Properties properties )
+	{
+		final ShavenBabyRegistrationSettings settings = createDefaultSettings();
+
+		for ( String key : properties.stringPropertyNames() )
+		{
+			final String value = properties.getProperty( key ).trim();
+
+			if ( key.equals( USE_TRANSFORM_CACHE ) ) continue;
+
+			if ( key.equals( REFERENCE_FILE ) )
+			{
+				ShavenBabyRegistrationCommand.setReferenceImage( settings, new File( value ) );
+				continue;
+			}
+
+			setField( settings, key, value );
+		}
+
+		// there is no display to show them on
+		settings.showIntermediateResults = false;
+
+		return settings;
+	}
+
+	private static void setField( ShavenBabyRegistrationSettings settings, String fieldName, String value )
+	{
+		try
+		{
+			final Field field = ShavenBabyRegistrationSettings.class.getField( fieldName );
+
+			if ( Modifier.isStatic( field.getModifiers() ) ) throw new IllegalArgumentException( "Static settings field cannot be set: " + fieldName );
+
+			final Class< ? > type = field.getType();
+
+			if ( type == int.class ) field.setInt( settings, Integer.parseInt( value ) );
+			else if ( type == double.class ) field.setDouble( settings, Double.parseDouble( value ) );
+			else if ( type == boolean.class ) field.setBoolean( settings, Boolean.parseBoolean( value ) );
+			else if ( type == String.class ) field.set( settings, value );
+			else if ( type == double[].class ) field.set( settings, Arrays.stream( value.split( "," ) ).mapToDouble( v -> Double.parseDouble( v.trim() ) ).toArray() );
+			else throw new IllegalArgumentException( "Settings field cannot be read from a file: " + fieldName );
+		}
+		catch ( NoSuchFieldException e )
+		{
+			throw new IllegalArgumentException( "No such settings field: " + fieldName );
+		}
+		catch ( IllegalAccessException | NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid value for " + fieldName + ": " + value, e );
+		}
+	}
+}
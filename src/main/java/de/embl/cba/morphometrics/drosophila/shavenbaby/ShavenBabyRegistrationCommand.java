@@ -1,14 +1,17 @@
 package de.embl.cba.morphometrics.drosophila.shavenbaby;
 
 import bdv.util.*;
+import de.embl.cba.morphometrics.CachedBioFormatsImage;
+import de.embl.cba.morphometrics.Prefetcher;
 import de.embl.cba.morphometrics.Projection;
 import de.embl.cba.morphometrics.RefractiveIndexMismatchCorrections;
+import de.embl.cba.morphometrics.TransformCache;
 import de.embl.cba.morphometrics.Transforms;
 import de.embl.cba.morphometrics.Utils;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.io.FileSaver;
 import net.imagej.DatasetService;
-import net.imagej.ops.OpService;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
@@ -16,8 +19,7 @@ import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -28,12 +30,14 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.FileWidget;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 
 import static de.embl.cba.morphometrics.Constants.*;
 import static de.embl.cba.morphometrics.Constants.X;
 import static de.embl.cba.morphometrics.Constants.Y;
-import static de.embl.cba.morphometrics.ImageIO.openWithBioFormats;
+import static de.embl.cba.morphometrics.ImageIO.openWithBioFormatsAtResolution;
 
 
 @Plugin(type = Command.class, menuPath = "Plugins>Registration>EMBL>Drosophila Shavenbaby" )
@@ -48,8 +52,6 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 	@Parameter
 	public LogService logService;
 
-	@Parameter
-	public OpService opService;
 
 	@Parameter
 	public StatusService statusService;
@@ -59,6 +61,10 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 
 	ShavenBabyRegistrationSettings settings = new ShavenBabyRegistrationSettings();
 
+	public static final double planeCacheMemoryFraction = 0.25;
+	public static final int numPlanesToReadAhead = 4;
+	public static final double prefetchMemoryFraction = 0.25;
+
 	public static final String FROM_DIRECTORY = "From directory";
 	public static final String CURRENT_IMAGE = "Current image";
 
@@ -68,6 +74,14 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 	@Parameter
 	public String fileNameEndsWith = ".czi,.lsm";
 
+	@Parameter( label = "Number of files to read ahead" )
+	public int numFilesToPrefetch = 2;
+
+	@Parameter( label = "Reuse cached transforms" )
+	public boolean useTransformCache = true;
+
+	private String registrationKey;
+
 	@Parameter
 	public int shavenBabyChannelIndexOneBased = settings.shavenBabyChannelIndexOneBased;
 
@@ -80,6 +94,18 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 	@Parameter
 	public double outputResolution = settings.outputResolution;
 
+	@Parameter( label = "Closing radius [um]" )
+	public double closingRadius = settings.closingRadius;
+
+	@Parameter( label = "Coarse to fine registration" )
+	public boolean coarseToFine = settings.coarseToFine;
+
+	@Parameter( label = "Roll angle computation", choices = { ShavenBabyRegistrationSettings.CENTROIDS_ROLL_ANGLE, ShavenBabyRegistrationSettings.ANGULAR_PROFILE_ROLL_ANGLE } )
+	public String rollAngleComputationMethod = settings.rollAngleComputationMethod;
+
+	@Parameter( label = "Reference image (single channel, registered)", required = false )
+	public File referenceFile;
+
 	@Parameter
 	public double thresholdInUnitsOfBackgroundPeakHalfWidth = settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
 
@@ -93,7 +119,9 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 	{
 		setSettingsFromUI();
 
-		final ShavenBabyRegistration registration = new ShavenBabyRegistration( settings, opService );
+		registrationKey = settings.getRegistrationKey();
+
+		final ShavenBabyRegistration registration = new ShavenBabyRegistration( settings );
 
 		if ( inputModality.equals( CURRENT_IMAGE ) && imagePlus != null )
 		{
@@ -106,55 +134,161 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		if ( inputModality.equals( FROM_DIRECTORY ) )
 		{
 			final File directory = uiService.chooseFile( null, FileWidget.DIRECTORY_STYLE );
-			String[] files = directory.list();
 
-			for( String file : files )
+			final ArrayList< String > inputPaths = new ArrayList<>(  );
+
+			for( String file : directory.list() )
 			{
 				if ( acceptFile( fileNameEndsWith, file ) )
 				{
-					// Open
-					final String inputPath = directory + "/" + file;
-					Utils.log( "Reading: " + inputPath + "..." );
-					final ImagePlus imagePlus = openWithBioFormats( inputPath );
+					inputPaths.add( directory + "/" + file );
+				}
+			}
+
+			// Open the next files in the background, while the current one is processed
+			final Prefetcher< InputImages< T > > prefetcher = new Prefetcher<>(
+					inputPaths,
+					this::openInputImages,
+					InputImages::sizeInBytes,
+					numFilesToPrefetch,
+					( long ) ( Runtime.getRuntime().maxMemory() * prefetchMemoryFraction ) );
 
-					if ( imagePlus == null )
+			try
+			{
+				while ( prefetcher.hasNext() )
+				{
+					final String inputPath = prefetcher.nextPath();
+					final InputImages< T > inputImages = prefetcher.next();
+
+					if ( inputImages == null )
 					{
 						logService.error( "Error opening file: " + inputPath );
 						continue;
 					}
 
-					RandomAccessibleInterval< T > registeredImages = registerImages( imagePlus, registration );
+					registerAndSave( inputPath, inputImages, registration, inputPath );
+				}
+			}
+			finally
+			{
+				prefetcher.close();
+			}
+		}
 
-					final FinalInterval interval = createOutputImageInterval( registeredImages );
+		Utils.log( "Done!" );
 
-					final IntervalView< T > registeredAndCroppedView = Views.interval( registeredImages, interval );
 
-					final RandomAccessibleInterval< T > registeredAndCropped = Utils.copyAsArrayImg( registeredAndCroppedView );
+	}
 
-					if ( settings.showIntermediateResults ) showWithBdv( registeredAndCropped, "registered" );
+	/**
+	 * Full resolution images of one file, of which the first planes are already decoded,
+	 * together with the reduced resolution image used for computing the registration,
+	 * or, instead of the latter, the cached registration transform.
+	 */
+	public static class InputImages< T extends RealType< T > & NativeType< T > >
+	{
+		public CachedBioFormatsImage< T > images;
+		public long prefetchedPlanesInBytes;
+		public ImagePlus registrationImagePlus;
+		public AffineTransform3D cachedTransform; // from full resolution voxel coordinates to registered micrometer coordinates
 
-					Utils.log( "Creating projections..." );
-					final ArrayList< ImagePlus > projections = createProjections( registeredAndCropped );
+		public long sizeInBytes()
+		{
+			return prefetchedPlanesInBytes + getRegistrationImageSizeInBytes();
+		}
 
-					Utils.log( "Saving projections..." );
-					saveImages( inputPath, projections );
+		public long getRegistrationImageSizeInBytes()
+		{
+			if ( registrationImagePlus == null ) return 0;
 
-					// Save
-					Utils.log( "Transforming registered images to imagePlus for saving..." );
-					final RandomAccessibleInterval< T > transformedWithImagePlusDimensionOrder = Utils.copyAsArrayImg( Views.permute( registeredAndCropped, 2, 3 ) );
-					final ImagePlus transformedImagePlus = ImageJFunctions.wrap( transformedWithImagePlusDimensionOrder, "transformed" );
-					final String outputPath = inputPath + "-registered.tif";
-					Utils.log( "Saving registered image: " + outputPath );
-					FileSaver fileSaver = new FileSaver( transformedImagePlus );
-					fileSaver.saveAsTiff( outputPath );
+			return 4L * registrationImagePlus.getWidth() * registrationImagePlus.getHeight() * registrationImagePlus.getStackSize();
+		}
+	}
 
-				}
+	/**
+	 * Registers the images of one file and saves the registered images and their projections.
+	 *
+	 * @param inputPath
+	 * @param inputImages as opened by {@link #openInputImages}; the full resolution images are closed afterwards, also if the registration fails
+	 * @param registration
+	 * @param outputPathPrefix path to which the suffixes of the saved images are appended
+	 */
+	public void registerAndSave( String inputPath, InputImages< T > inputImages, ShavenBabyRegistration registration, String outputPathPrefix )
+	{
+		final RandomAccessibleInterval< T > registeredAndCropped;
+
+		try
+		{
+			final double[] calibration = inputImages.images.getCalibration();
+
+			final AffineTransform3D registrationTransform;
+
+			if ( inputImages.cachedTransform != null )
+			{
+				registrationTransform = fromMicrometerToOutputVoxelUnits( inputImages.cachedTransform );
+			}
+			else
+			{
+				registrationTransform = computeRegistrationTransform( calibration, inputImages.registrationImagePlus, registration );
+
+				if ( useTransformCache ) TransformCache.write( inputPath, registrationKey, fromOutputVoxelToMicrometerUnits( registrationTransform ) );
 			}
+
+			RefractiveIndexMismatchCorrections.correctCalibration( calibration, settings.refractiveIndexScalingCorrectionFactor );
+
+			registeredAndCropped = applyRegistration( inputImages.images, calibration, registrationTransform );
+		}
+		finally
+		{
+			inputImages.images.close();
 		}
 
-		Utils.log( "Done!" );
+		if ( settings.showIntermediateResults ) showWithBdv( registeredAndCropped, "registered" );
 
+		Utils.log( "Creating projections..." );
+		final ArrayList< ImagePlus > projections = createProjections( registeredAndCropped );
 
+		Utils.log( "Saving projections..." );
+		saveImages( outputPathPrefix, projections );
+
+		// Save
+		Utils.log( "Transforming registered images to imagePlus for saving..." );
+		final RandomAccessibleInterval< T > transformedWithImagePlusDimensionOrder = Utils.copyAsArrayImg( Views.permute( registeredAndCropped, 2, 3 ) );
+		final ImagePlus transformedImagePlus = ImageJFunctions.wrap( transformedWithImagePlusDimensionOrder, "transformed" );
+		final String outputPath = outputPathPrefix + "-registered.tif";
+		Utils.log( "Saving registered image: " + outputPath );
+		FileSaver fileSaver = new FileSaver( transformedImagePlus );
+		fileSaver.saveAsTiff( outputPath );
+	}
+
+	/**
+	 * @return the input images, or null if the file could not be opened
+	 */
+	public InputImages< T > openInputImages( String inputPath )
+	{
+		Utils.log( "Reading: " + inputPath + "..." );
+
+		final InputImages< T > inputImages = new InputImages<>();
+		inputImages.images = openWithPlaneCache( inputPath );
+
+		if ( useTransformCache ) inputImages.cachedTransform = TransformCache.read( inputPath, registrationKey );
+
+		if ( inputImages.cachedTransform == null )
+		{
+			inputImages.registrationImagePlus = openWithBioFormatsAtResolution( inputPath, shavenBabyChannelIndexOneBased - 1, settings.registrationResolution );
+		}
+
+		if ( inputImages.images == null || ( inputImages.registrationImagePlus == null && inputImages.cachedTransform == null ) )
+		{
+			if ( inputImages.images != null ) inputImages.images.close();
+			return null;
+		}
+
+		// decode the full resolution planes that fit into this file's share of the prefetch memory
+		final long prefetchBudget = ( long ) ( Runtime.getRuntime().maxMemory() * prefetchMemoryFraction / Math.max( 1, numFilesToPrefetch ) );
+		inputImages.prefetchedPlanesInBytes = inputImages.images.prefetchPlanes( prefetchBudget - inputImages.getRegistrationImageSizeInBytes() );
+
+		return inputImages;
 	}
 
 	public boolean acceptFile( String fileNameEndsWith, String file )
@@ -172,10 +306,10 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		return false;
 	}
 
-	public FinalInterval createOutputImageInterval( RandomAccessibleInterval rai )
+	public FinalInterval createOutputImageInterval()
 	{
-		final long[] min = Intervals.minAsLongArray( rai );
-		final long[] max = Intervals.maxAsLongArray( rai );
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
 
 		min[ X ] = - (long) ( settings.outputImageSizeX / 2 / settings.outputResolution );
 		min[ Y ] = - (long) ( settings.outputImageSizeY / 2 / settings.outputResolution );
@@ -241,15 +375,131 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		Utils.log( "Computing registration...." );
 		final AffineTransform3D registrationTransform = registration.computeRegistration( shavenBaby, calibration );
 
+		return applyRegistration( images, calibration, registrationTransform );
+	}
+
+	/**
+	 * Computes the registration on a reduced resolution image of the shaven baby channel
+	 * and applies it to the full resolution images, which are thereby read only once.
+	 *
+	 * @param imagePlus full resolution images
+	 * @param registrationImagePlus shaven baby channel at reduced resolution, see {@link de.embl.cba.morphometrics.ImageIO#openWithBioFormatsAtResolution}
+	 * @param registration
+	 * @return registered and cropped images
+	 */
+	public RandomAccessibleInterval< T > registerImages( ImagePlus imagePlus, ImagePlus registrationImagePlus, ShavenBabyRegistration registration )
+	{
+		return registerImages( getImages( imagePlus ), Utils.getCalibration( imagePlus ), registrationImagePlus, registration );
+	}
+
+	/**
+	 * @param images full resolution images, XYZC
+	 * @param calibration full resolution voxel size
+	 * @param registrationImagePlus shaven baby channel at reduced resolution
+	 * @param registration
+	 * @return registered and cropped images
+	 */
+	public RandomAccessibleInterval< T > registerImages( RandomAccessibleInterval< T > images, double[] calibration, ImagePlus registrationImagePlus, ShavenBabyRegistration registration )
+	{
+		final AffineTransform3D registrationTransform = computeRegistrationTransform( calibration, registrationImagePlus, registration );
+
+		RefractiveIndexMismatchCorrections.correctCalibration( calibration, settings.refractiveIndexScalingCorrectionFactor );
+
+		return applyRegistration( images, calibration, registrationTransform );
+	}
+
+	/**
+	 * @param calibration full resolution voxel size
+	 * @param registrationImagePlus shaven baby channel at reduced resolution
+	 * @param registration
+	 * @return transformation from full resolution voxel coordinates to registered voxel coordinates at the output resolution
+	 */
+	public AffineTransform3D computeRegistrationTransform( double[] calibration, ImagePlus registrationImagePlus, ShavenBabyRegistration registration )
+	{
+		RandomAccessibleInterval< T > shavenBaby = ImageJFunctions.wrap( registrationImagePlus );
+
+		final AffineTransform3D inputToRegistrationImage = createFullToReducedResolutionTransform( calibration, registrationImagePlus );
+
+		Utils.log( "Computing registration (at a voxel size of " + registrationImagePlus.getCalibration().pixelWidth + " micrometer in x and y)...." );
+		final AffineTransform3D registrationTransform = registration.computeRegistration( shavenBaby, Utils.getCalibration( registrationImagePlus ) );
+		registrationTransform.concatenate( inputToRegistrationImage );
+
+		return registrationTransform;
+	}
+
+	/**
+	 * Cached transforms are stored in registered micrometer coordinates, such that they stay valid
+	 * if only the output resolution changes.
+	 */
+	public AffineTransform3D fromOutputVoxelToMicrometerUnits( AffineTransform3D registrationTransform )
+	{
+		return registrationTransform.copy().preConcatenate( Transforms.createScalingTransform( Utils.get3dDoubleArray( settings.outputResolution ) ) );
+	}
+
+	public AffineTransform3D fromMicrometerToOutputVoxelUnits( AffineTransform3D transformInMicrometer )
+	{
+		return transformInMicrometer.copy().preConcatenate( Transforms.createScalingTransform( Utils.get3dDoubleArray( settings.outputResolution ) ).inverse() );
+	}
+
+	/**
+	 * @param calibration full resolution voxel size
+	 * @param reduced reduced resolution image, whose calibration origin is given in its own voxel units
+	 * @return transformation from full resolution voxel coordinates to reduced resolution voxel coordinates
+	 */
+	public static AffineTransform3D createFullToReducedResolutionTransform( double[] calibration, ImagePlus reduced )
+	{
+		final double[] reducedCalibration = Utils.getCalibration( reduced );
+		final double[] reducedOrigin = new double[]{
+				reduced.getCalibration().xOrigin,
+				reduced.getCalibration().yOrigin,
+				reduced.getCalibration().zOrigin };
+
+		final AffineTransform3D transform = new AffineTransform3D();
+
+		for ( int d : XYZ )
+		{
+			transform.set( calibration[ d ] / reducedCalibration[ d ], d, d );
+			transform.set( reducedOrigin[ d ], d, 3 );
+		}
+
+		return transform;
+	}
+
+	public RandomAccessibleInterval< T > applyRegistration( RandomAccessibleInterval< T > images, double[] calibration, AffineTransform3D registrationTransform )
+	{
 		Utils.log( "Applying intensity correction to all channels...." );
-		final RandomAccessibleInterval< T > intensityCorrectedImages = RefractiveIndexMismatchCorrections.createIntensityCorrectedImages( images, calibration[ 2 ], settings.refractiveIndexIntensityCorrectionDecayLength  );
+		final RandomAccessibleInterval< T > intensityCorrectedImages;
+
+		if ( images instanceof CachedBioFormatsImage )
+		{
+			// avoid copying the full resolution data into memory
+			intensityCorrectedImages = RefractiveIndexMismatchCorrections.createIntensityCorrectedViews( images, calibration[ 2 ], settings.refractiveIndexIntensityCorrectionDecayLength );
+		}
+		else
+		{
+			intensityCorrectedImages = RefractiveIndexMismatchCorrections.createIntensityCorrectedImages( images, calibration[ 2 ], settings.refractiveIndexIntensityCorrectionDecayLength );
+		}
 
 		Utils.log( "Applying registration to all channels (at a resolution of " + settings.outputResolution + " micrometer) ..." );
-		final RandomAccessibleInterval< T > registeredImages = Transforms.transformAllChannels( intensityCorrectedImages, registrationTransform );
+		final RandomAccessibleInterval< T > registeredImages = Transforms.transformAllChannels( intensityCorrectedImages, registrationTransform, createOutputImageInterval() );
 
 		return registeredImages;
 	}
 
+	public CachedBioFormatsImage< T > openWithPlaneCache( String path )
+	{
+		try
+		{
+			final long memoryBudget = ( long ) ( Runtime.getRuntime().maxMemory() * planeCacheMemoryFraction );
+			return CachedBioFormatsImage.open( path, memoryBudget, numPlanesToReadAhead );
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public RandomAccessibleInterval< T > getImages( ImagePlus imagePlus )
 	{
 		RandomAccessibleInterval< T > images = ImageJFunctions.wrap( imagePlus );
@@ -277,15 +527,65 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 
 	public void setSettingsFromUI()
 	{
+		settings.shavenBabyChannelIndexOneBased = shavenBabyChannelIndexOneBased;
 		settings.showIntermediateResults = showIntermediateResults;
 		settings.registrationResolution = registrationResolution;
-		settings.closingRadius = 0;
+		settings.closingRadius = closingRadius;
+		settings.coarseToFine = coarseToFine;
+		settings.rollAngleComputationMethod = rollAngleComputationMethod;
 		settings.outputResolution = outputResolution;
 		settings.backgroundIntensity = 0;
 		settings.refractiveIndexScalingCorrectionFactor = refractiveIndexScalingCorrectionFactor;
 		settings.refractiveIndexIntensityCorrectionDecayLength = refractiveIndexIntensityCorrectionDecayLength;
-		settings.thresholdModality = "";
 		settings.thresholdInUnitsOfBackgroundPeakHalfWidth = thresholdInUnitsOfBackgroundPeakHalfWidth;
+		if ( referenceFile != null ) setReferenceImage( settings, referenceFile );
+	}
+
+	/**
+	 * Uses the given settings instead of the ones of the user interface, e.g. when running without one.
+	 */
+	public void setSettings( ShavenBabyRegistrationSettings settings )
+	{
+		this.settings = settings;
+		this.shavenBabyChannelIndexOneBased = settings.shavenBabyChannelIndexOneBased;
+		this.registrationKey = settings.getRegistrationKey();
+	}
+
+	/**
+	 * Sets the reference image, which is identified in the registration key by its path and file fingerprint.
+	 */
+	public static void setReferenceImage( ShavenBabyRegistrationSettings settings, File file )
+	{
+		try
+		{
+			settings.referenceImageKey = file.getAbsolutePath() + "," + TransformCache.computeFingerprint( file.getAbsolutePath() );
+		}
+		catch ( IOException e )
+		{
+			throw new UncheckedIOException( "Could not read reference image: " + file, e );
+		}
+
+		settings.referenceImage = openReferenceImage( file );
+	}
+
+	/**
+	 * @param file a registered shaven baby image, as saved by this command
+	 * @return the image, centred at the origin, as is the registered voxel coordinate system
+	 */
+	public static RandomAccessibleInterval< FloatType > openReferenceImage( File file )
+	{
+		final ImagePlus imagePlus = IJ.openImage( file.getAbsolutePath() );
+
+		final RandomAccessibleInterval< FloatType > reference = ImageJFunctions.convertFloat( imagePlus );
+
+		final long[] offset = new long[ 3 ];
+
+		for ( int d : XYZ )
+		{
+			offset[ d ] = - reference.dimension( d ) / 2;
+		}
+
+		return Views.translate( reference, offset );
 	}
 
 
@@ -0,0 +1,96 @@
+package de.embl.cba.morphometrics.drosophila.shavenbaby;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Registration transform of one embryo together with the values that allow to judge its quality,
+ * and the computation time of each stage.
+ */
+public class ShavenBabyRegistrationResult
+{
+	public AffineTransform3D transform;
+
+	public double offset = Double.NaN;
+	public double threshold = Double.NaN;
+	public long numForegroundVoxels;
+	public double[] ellipsoidRadii = new double[]{ Double.NaN, Double.NaN, Double.NaN }; // micrometer
+	public double rollAngle = Double.NaN; // degrees
+
+	public LinkedHashMap< String, Long > stageTimesMillis = new LinkedHashMap<>();
+	public long totalTimeMillis;
+
+	private String currentStage;
+	private long currentStageStartTime;
+
+	/**
+	 * Ends the current stage, if any, and starts timing the given stage.
+	 */
+	public void startStage( String stage )
+	{
+		endStage();
+
+		currentStage = stage;
+		currentStageStartTime = System.currentTimeMillis();
+	}
+
+	public void endStage()
+	{
+		if ( currentStage == null ) return;
+
+		stageTimesMillis.merge( currentStage, System.currentTimeMillis() - currentStageStartTime, Long::sum );
+
+		currentStage = null;
+	}
+
+	/**
+	 * Writes one row per input: the twelve values of the affine transform ( row major ),
+	 * the quality measures and the time of each stage.
+	 *
+	 * @param file
+	 * @param results by input path, in the order of the rows
+	 * @throws IOException
+	 */
+	public static void writeCsv( File file, Map< String, ShavenBabyRegistrationResult > results ) throws IOException
+	{
+		final Set< String > stages = new LinkedHashSet<>();
+		for ( ShavenBabyRegistrationResult result : results.values() ) stages.addAll( result.stageTimesMillis.keySet() );
+
+		try ( PrintWriter writer = new PrintWriter( file ) )
+		{
+			final StringBuilder header = new StringBuilder( "path" );
+			for ( int row = 0; row < 3; ++row )
+				for ( int column = 0; column < 4; ++column )
+					header.append( ",m" ).append( row ).append( column );
+			header.append( ",offset,threshold,numForegroundVoxels,radiusX,radiusY,radiusZ,rollAngle" );
+			for ( String stage : stages ) header.append( "," ).append( stage.replace( ' ', '_' ) ).append( "_ms" );
+			header.append( ",total_ms" );
+			writer.println( header );
+
+			for ( Map.Entry< String, ShavenBabyRegistrationResult > entry : results.entrySet() )
+			{
+				final ShavenBabyRegistrationResult result = entry.getValue();
+
+				final StringBuilder line = new StringBuilder( "\"" + entry.getKey() + "\"" );
+				for ( int row = 0; row < 3; ++row )
+					for ( int column = 0; column < 4; ++column )
+						line.append( "," ).append( result.transform.get( row, column ) );
+				line.append( "," ).append( result.offset );
+				line.append( "," ).append( result.threshold );
+				line.append( "," ).append( result.numForegroundVoxels );
+				for ( double radius : result.ellipsoidRadii ) line.append( "," ).append( radius );
+				line.append( "," ).append( result.rollAngle );
+				for ( String stage : stages ) line.append( "," ).append( result.stageTimesMillis.getOrDefault( stage, 0L ) );
+				line.append( "," ).append( result.totalTimeMillis );
+				writer.println( line );
+			}
+		}
+	}
+}
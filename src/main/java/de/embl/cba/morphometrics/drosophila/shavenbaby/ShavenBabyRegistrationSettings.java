@@ -1,9 +1,15 @@
 package de.embl.cba.morphometrics.drosophila.shavenbaby;
 
-public class ShavenBabyRegistrationSettings
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+import java.util.Arrays;
+
+public class ShavenBabyRegistrationSettings implements Cloneable
 {
-	public static final String MANUAL_THRESHOLD = "Manual threshold";
-	public static final String HUANG_AUTO_THRESHOLD = "Huang auto threshold";
+	public static final String CENTROIDS_ROLL_ANGLE = "Centroids";
+	public static final String ANGULAR_PROFILE_ROLL_ANGLE = "Angular profile";
 
 	// all spatial values are in micrometer
 	// morphometrics length: 420
@@ -24,10 +30,14 @@ public class ShavenBabyRegistrationSettings
 	public double rollAngleMinDistanceToCenter = drosophilaLength / 2.0 * 0.5;
 	public double rollAngleMaxDistanceToCenter = drosophilaLength / 2.0 - 10.0;
 
+	// roll angle from the median of the slice centroid angles, or from the angular profile by FFT cross-correlation
+	public String rollAngleComputationMethod = CENTROIDS_ROLL_ANGLE;
+	public int rollAngleNumAngles = 256; // power of two
+	public double[] rollAngleReferenceProfile = null; // null: all mass at negative z, as for the centroids
+
 	public double watershedSeedsGlobalDistanceThreshold = drosophilaWidth / 3.0;
 	public double watershedSeedsLocalMaximaDistanceThreshold = 3 * registrationResolution; // at least 3 pixels
 
-	public String thresholdModality = MANUAL_THRESHOLD;
 	public double thresholdInUnitsOfBackgroundPeakHalfWidth = 5.0;
 	public double closingRadius = 0;
 
@@ -35,5 +45,59 @@ public class ShavenBabyRegistrationSettings
 	public double outputImageSizeY = 250;
 	public double outputImageSizeZ = 250;
 
+	// coarse-to-fine: full registration at the coarse resolution,
+	// then refinement of roll and centre at finer levels down to the registration resolution
+	public boolean coarseToFine = false;
+	public double coarseRegistrationResolution = 16.0;
+	public double refinementSearchWindow = 20.0;
+	public double refinementCentreTolerance = 2.0;
+	public double refinementRollAngleTolerance = 1.0; // degrees
+
+	// optional rigid refinement against a reference embryo, maximising the normalised cross-correlation;
+	// the reference is given in registered voxel coordinates at the output resolution, i.e. centred at the origin
+	public RandomAccessibleInterval< FloatType > referenceImage = null;
+	public String referenceImageKey = null; // identifies the reference image in the registration key, e.g. its path and file fingerprint
+	public double[] referenceRefinementResolutions = new double[]{ 12.0, 6.0 };
+	public int referenceRefinementMaxIterations = 30;
+
+	/**
+	 * @return all settings that affect the registration transform in registered micrometer coordinates,
+	 * i.e. not the output image size, which only affects the resampling, and not the output resolution,
+	 * unless there is a reference image, which is given in voxels at the output resolution
+	 */
+	public String getRegistrationKey()
+	{
+		return "channel=" + shavenBabyChannelIndexOneBased
+				+ ";refractiveIndexScalingCorrectionFactor=" + refractiveIndexScalingCorrectionFactor
+				+ ";registrationResolution=" + registrationResolution
+				+ ";refractiveIndexIntensityCorrectionDecayLength=" + refractiveIndexIntensityCorrectionDecayLength
+				+ ";rollAngle=" + rollAngleMinDistanceToAxis + "," + rollAngleMinDistanceToCenter + "," + rollAngleMaxDistanceToCenter
+				+ ";rollAngleComputationMethod=" + rollAngleComputationMethod + "," + rollAngleNumAngles + "," + Arrays.hashCode( rollAngleReferenceProfile )
+				+ ";watershedSeeds=" + watershedSeedsGlobalDistanceThreshold + "," + watershedSeedsLocalMaximaDistanceThreshold
+				+ ";threshold=" + thresholdInUnitsOfBackgroundPeakHalfWidth
+				+ ";closingRadius=" + closingRadius
+				+ ";coarseToFine=" + coarseToFine + "," + coarseRegistrationResolution + "," + refinementSearchWindow + "," + refinementCentreTolerance + "," + refinementRollAngleTolerance
+				+ ";reference=" + ( referenceImage == null ? "none" : getReferenceImageKey() + "," + outputResolution
+						+ "," + Arrays.toString( referenceRefinementResolutions ) + "," + referenceRefinementMaxIterations );
+	}
+
+	private String getReferenceImageKey()
+	{
+		if ( referenceImageKey != null ) return referenceImageKey;
+
+		return "unnamed" + Arrays.toString( Intervals.dimensionsAsLongArray( referenceImage ) );
+	}
+
+	public ShavenBabyRegistrationSettings copy()
+	{
+		try
+		{
+			return ( ShavenBabyRegistrationSettings ) super.clone();
+		}
+		catch ( CloneNotSupportedException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
 
 }
@@ -0,0 +1,147 @@
+package de.embl.cba.morphometrics.drosophila.shavenbaby;
+
+import de.embl.cba.morphometrics.ImageIO;
+import de.embl.cba.morphometrics.Prefetcher;
+import de.embl.cba.morphometrics.Utils;
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import static de.embl.cba.morphometrics.ImageIO.openWithBioFormatsAtResolution;
+
+/**
+ * Computes only the registration transforms of all embryos in a directory, without creating any registered images,
+ * and writes them, together with their quality measures, into one csv file.
+ *
+ * The transforms map full resolution input voxel coordinates to registered voxel coordinates at the output resolution.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Registration>EMBL>Drosophila Shavenbaby Transforms" )
+public class ShavenBabyTransformsCommand < T extends RealType< T > & NativeType< T > > implements Command
+{
+	@Parameter
+	public LogService logService;
+
+
+	ShavenBabyRegistrationSettings settings = new ShavenBabyRegistrationSettings();
+
+	public static final double prefetchMemoryFraction = 0.25;
+
+	@Parameter( style = "directory" )
+	public File inputDirectory;
+
+	@Parameter
+	public String fileNameEndsWith = ".czi,.lsm";
+
+	@Parameter( label = "Output file (csv)", style = "save" )
+	public File outputFile;
+
+	@Parameter( label = "Number of files to read ahead" )
+	public int numFilesToPrefetch = 2;
+
+	@Parameter
+	public int shavenBabyChannelIndexOneBased = settings.shavenBabyChannelIndexOneBased;
+
+	@Parameter
+	public double registrationResolution = settings.registrationResolution;
+
+	@Parameter
+	public double outputResolution = settings.outputResolution;
+
+	@Parameter( label = "Coarse to fine registration" )
+	public boolean coarseToFine = settings.coarseToFine;
+
+	@Parameter( label = "Roll angle computation", choices = { ShavenBabyRegistrationSettings.CENTROIDS_ROLL_ANGLE, ShavenBabyRegistrationSettings.ANGULAR_PROFILE_ROLL_ANGLE } )
+	public String rollAngleComputationMethod = settings.rollAngleComputationMethod;
+
+	@Parameter
+	public double thresholdInUnitsOfBackgroundPeakHalfWidth = settings.thresholdInUnitsOfBackgroundPeakHalfWidth;
+
+	public void run()
+	{
+		setSettingsFromUI();
+
+		final ShavenBabyRegistration registration = new ShavenBabyRegistration( settings );
+
+		final ArrayList< String > inputPaths = new ArrayList<>();
+
+		for ( String file : inputDirectory.list() )
+		{
+			for ( String endsWith : fileNameEndsWith.split( "," ) )
+			{
+				if ( file.endsWith( endsWith.trim() ) )
+				{
+					inputPaths.add( inputDirectory + "/" + file );
+					break;
+				}
+			}
+		}
+
+		final Prefetcher< ImagePlus > prefetcher = new Prefetcher<>(
+				inputPaths,
+				path -> openWithBioFormatsAtResolution( path, shavenBabyChannelIndexOneBased - 1, settings.registrationResolution ),
+				imagePlus -> 4L * imagePlus.getWidth() * imagePlus.getHeight() * imagePlus.getStackSize(),
+				numFilesToPrefetch,
+				( long ) ( Runtime.getRuntime().maxMemory() * prefetchMemoryFraction ) );
+
+		final LinkedHashMap< String, ShavenBabyRegistrationResult > results = new LinkedHashMap<>();
+
+		while ( prefetcher.hasNext() )
+		{
+			final String inputPath = prefetcher.nextPath();
+			final ImagePlus registrationImagePlus = prefetcher.next();
+			final double[] calibration = ImageIO.openCalibration( inputPath );
+
+			if ( registrationImagePlus == null || calibration == null )
+			{
+				logService.error( "Error opening file: " + inputPath );
+				continue;
+			}
+
+			Utils.log( "Computing transform: " + inputPath );
+
+			final RandomAccessibleInterval< T > shavenBaby = ImageJFunctions.wrap( registrationImagePlus );
+
+			final ShavenBabyRegistrationResult result = registration.computeTransform( shavenBaby, Utils.getCalibration( registrationImagePlus ) );
+
+			final AffineTransform3D inputToRegistrationImage = ShavenBabyRegistrationCommand.createFullToReducedResolutionTransform( calibration, registrationImagePlus );
+			result.transform.concatenate( inputToRegistrationImage );
+
+			results.put( inputPath, result );
+		}
+
+		prefetcher.close();
+
+		try
+		{
+			ShavenBabyRegistrationResult.writeCsv( outputFile, results );
+			Utils.log( "Transforms written to: " + outputFile );
+		}
+		catch ( IOException e )
+		{
+			logService.error( "Error writing file: " + outputFile, e );
+		}
+	}
+
+	public void setSettingsFromUI()
+	{
+		settings.shavenBabyChannelIndexOneBased = shavenBabyChannelIndexOneBased;
+		settings.registrationResolution = registrationResolution;
+		settings.outputResolution = outputResolution;
+		settings.coarseToFine = coarseToFine;
+		settings.rollAngleComputationMethod = rollAngleComputationMethod;
+		settings.thresholdInUnitsOfBackgroundPeakHalfWidth = thresholdInUnitsOfBackgroundPeakHalfWidth;
+		settings.showIntermediateResults = false;
+	}
+}
@@ -8,22 +8,14 @@ import de.embl.cba.morphometrics.geometry.Ellipsoids;
 import net.imagej.ops.OpService;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
-import net.imglib2.algorithm.morphology.Closing;
-import net.imglib2.algorithm.neighborhood.HyperSphereShape;
-import net.imglib2.algorithm.neighborhood.Shape;
-import net.imglib2.converter.Converters;
 import net.imglib2.histogram.Histogram1d;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.roi.labeling.ImgLabeling;
-import net.imglib2.roi.labeling.LabelRegion;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import java.util.ArrayList;
@@ -32,7 +24,6 @@ import java.util.Collections;
 import java.util.List;
 
 import static de.embl.cba.morphometrics.Constants.*;
-import static de.embl.cba.morphometrics.Transforms.getScalingFactors;
 import static de.embl.cba.morphometrics.viewing.BdvImageViewer.show;
 import static java.lang.Math.toRadians;
 
@@ -60,8 +51,11 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 
 		final double[] workingCalibration = Utils.get3dDoubleArray( settings.workingVoxelSize );
 
-		final RandomAccessibleInterval< T > dapi = Algorithms.createIsotropicArrayImg( settings.dapi, getScalingFactors( settings.inputCalibration, settings.workingVoxelSize ) );
-		final RandomAccessibleInterval< T > tubulin = Algorithms.createIsotropicArrayImg( settings.tubulin, getScalingFactors( settings.inputCalibration, settings.workingVoxelSize ) );
+		final ImagePyramid< T > dapiPyramid = new ImagePyramid<>( settings.dapi, settings.inputCalibration );
+		final ImagePyramid< T > tubulinPyramid = new ImagePyramid<>( settings.tubulin, settings.inputCalibration );
+
+		final RandomAccessibleInterval< T > dapi = dapiPyramid.get( settings.workingVoxelSize );
+		final RandomAccessibleInterval< T > tubulin = tubulinPyramid.get( settings.workingVoxelSize );
 
 		if ( settings.showIntermediateResults ) show( dapi, "dapi isotropic resolution", null, workingCalibration, false );
 		if ( settings.showIntermediateResults ) show( tubulin, "tubulin isotropic resolution", null, workingCalibration, false );
@@ -71,7 +65,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 *  Compute offset and threshold
 		 */
 
-		final RandomAccessibleInterval< T > dapi3um = Algorithms.createIsotropicArrayImg( settings.dapi, getScalingFactors( settings.inputCalibration, 3.0 ) );
+		final RandomAccessibleInterval< T > dapi3um = dapiPyramid.get( 3.0 );
 		final double maximumValue = Algorithms.getMaximumValue( dapi3um );
 		double threshold = maximumValue / 2.0;
 
@@ -102,11 +96,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 
 		Utils.log( "Extracting metaphase plate object..." );
 
-		final ImgLabeling< Integer, IntType > labelImg = Utils.createLabelImg( closed );
-
-		final LabelRegion< Integer > largestObject = Algorithms.getLargestObject( labelImg );
-
-		final Img< BitType > dapiMask = Algorithms.createBitTypeMaskFromLabelRegion( largestObject, Intervals.dimensionsAsLongArray( labelImg ) );
+		final RandomAccessibleInterval< BitType > dapiMask = ObjectExtraction.extractLargestObject( closed );
 
 		if ( settings.showIntermediateResults ) show( dapiMask, "meta-phase object", null, workingCalibration, false );
 
@@ -171,16 +161,13 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 
 	public RandomAccessibleInterval< BitType > createClosedImage( RandomAccessibleInterval< BitType > mask )
 	{
-		RandomAccessibleInterval< BitType > closed = Utils.copyAsArrayImg( mask );
-
 		if ( settings.closingRadius > 0 )
 		{
 			Utils.log( "Morphological closing...");
-			Shape closingShape = new HyperSphereShape( ( int ) ( settings.closingRadius / settings.workingVoxelSize ) );
-			Closing.close( Views.extendBorder( mask ), Views.iterable( closed ), closingShape, 1 );
+			return BinaryMorphology.closeWithDistanceTransform( mask, settings.closingRadius, Utils.get3dDoubleArray( settings.workingVoxelSize ) );
 		}
 
-		return closed;
+		return mask;
 	}
 
 	public < T extends RealType< T > & NativeType< T > >
@@ -188,9 +175,9 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 	{
 		Utils.log( "Creating mask...");
 
-		RandomAccessibleInterval< BitType > mask = Converters.convert( downscaled, ( i, o ) -> o.set( i.getRealDouble() > threshold ? true : false ), new BitType() );
+		RandomAccessibleInterval< BitType > mask = Thresholding.createMask( downscaled, threshold );
 
-		mask = opService.morphology().fillHoles( mask );
+		mask = BinaryMorphology.fillHoles( mask );
 
 		return mask;
 	}
@@ -216,7 +203,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		return threshold;
 	}
 
-	public ImgLabeling< Integer, IntType > createWatershedSeeds( double[] registrationCalibration,
+	public RandomAccessibleInterval< IntType > createWatershedSeeds( double[] registrationCalibration,
 																 RandomAccessibleInterval< DoubleType > distance,
 																 RandomAccessibleInterval< BitType > mask )
 	{
@@ -225,16 +212,13 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		double globalDistanceThreshold = Math.pow( settings.watershedSeedsGlobalDistanceThreshold / settings.workingVoxelSize, 2 );
 		double localMaximaDistanceThreshold = Math.pow( settings.watershedSeedsLocalMaximaDistanceThreshold / settings.workingVoxelSize, 2 );
 
-		final RandomAccessibleInterval< BitType >  seeds = Utils.createSeeds(
+		final RandomAccessibleInterval< IntType > seeds = WatershedSeeds.createSeedLabels(
 				distance,
-				new HyperSphereShape( 1 ),
 				globalDistanceThreshold,
 				localMaximaDistanceThreshold );
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg = Utils.createLabelImg( seeds );
-
-		if ( settings.showIntermediateResults ) show( Utils.asIntImg( seedsLabelImg ), "watershed seeds", null, registrationCalibration, false );
-		return seedsLabelImg;
+		if ( settings.showIntermediateResults ) show( seeds, "watershed seeds", null, registrationCalibration, false );
+		return seeds;
 	}
 
 	public AffineTransform3D computeOrientationTransform( RandomAccessibleInterval yawAlignedMask, RandomAccessibleInterval yawAlignedIntensities, double calibration )
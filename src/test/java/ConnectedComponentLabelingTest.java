@@ -0,0 +1,136 @@
+import de.embl.cba.morphometrics.ConnectedComponentLabeling;
+import de.embl.cba.morphometrics.LabeledComponents;
+import de.embl.cba.morphometrics.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the union-find labeling with the 26-connected labeling of imglib2,
+ * on random masks of several densities, and checks the per label statistics.
+ */
+public class ConnectedComponentLabelingTest
+{
+	public static final int SIZE = 150;
+	public static final double[] DENSITIES = { 0.1, 0.3, 0.5 };
+
+	public static void main( String... args )
+	{
+		for ( double density : DENSITIES )
+		{
+			final RandomAccessibleInterval< BitType > mask = Views.translate( createMask( density ), 10, -5, 3 );
+
+			long start = System.nanoTime();
+			final ImgLabeling< Integer, IntType > labeling = Utils.createLabelImg( mask );
+			final long labelingTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final ImgLabeling< Integer, IntType > reference = createReferenceLabeling( mask );
+			final long referenceTime = System.nanoTime() - start;
+
+			final LabeledComponents components = ConnectedComponentLabeling.label( mask );
+
+			final boolean isEqual = isSamePartition( labeling, reference ) && hasCorrectSizes( components, labeling );
+
+			System.out.println( "Density " + density
+					+ ": " + components.numLabels + " components"
+					+ ", union-find " + labelingTime / 1000000 + " ms"
+					+ ", imglib2 " + referenceTime / 1000000 + " ms"
+					+ ( isEqual ? "" : ", MISMATCH" ) );
+		}
+	}
+
+	private static RandomAccessibleInterval< BitType > createMask( double density )
+	{
+		final RandomAccessibleInterval< BitType > mask = ArrayImgs.bits( SIZE, SIZE, SIZE );
+		final Random random = new Random( 42 );
+
+		for ( BitType voxel : Views.iterable( mask ) )
+		{
+			voxel.set( random.nextDouble() < density );
+		}
+
+		return mask;
+	}
+
+	private static ImgLabeling< Integer, IntType > createReferenceLabeling( RandomAccessibleInterval< BitType > mask )
+	{
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( Views.translate( ArrayImgs.ints( SIZE, SIZE, SIZE ), mask.min( 0 ), mask.min( 1 ), mask.min( 2 ) ) );
+
+		final Iterator< Integer > labelCreator = new Iterator< Integer >()
+		{
+			int id = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return true;
+			}
+
+			@Override
+			public Integer next()
+			{
+				return id++;
+			}
+		};
+
+		ConnectedComponents.labelAllConnectedComponents( mask, labeling, labelCreator, ConnectedComponents.StructuringElement.EIGHT_CONNECTED );
+
+		return labeling;
+	}
+
+	/**
+	 * @return whether the label indices of both labelings correspond one to one
+	 */
+	private static boolean isSamePartition( ImgLabeling< Integer, IntType > labeling, ImgLabeling< Integer, IntType > reference )
+	{
+		final Map< Integer, Integer > toReference = new HashMap<>();
+		final Map< Integer, Integer > fromReference = new HashMap<>();
+
+		final Cursor< IntType > cursor = Views.flatIterable( labeling.getIndexImg() ).cursor();
+		final Cursor< IntType > referenceCursor = Views.flatIterable( reference.getIndexImg() ).cursor();
+
+		while ( cursor.hasNext() )
+		{
+			final int index = cursor.next().get();
+			final int referenceIndex = referenceCursor.next().get();
+
+			if ( ( index == 0 ) != ( referenceIndex == 0 ) ) return false;
+
+			if ( toReference.computeIfAbsent( index, i -> referenceIndex ) != referenceIndex ) return false;
+			if ( fromReference.computeIfAbsent( referenceIndex, i -> index ) != index ) return false;
+		}
+
+		return true;
+	}
+
+	private static boolean hasCorrectSizes( LabeledComponents components, ImgLabeling< Integer, IntType > labeling )
+	{
+		final long[] sizes = new long[ components.numLabels + 1 ];
+
+		for ( IntType index : Views.iterable( labeling.getIndexImg() ) )
+		{
+			sizes[ index.get() ]++;
+		}
+
+		for ( int label = 1; label <= components.numLabels; ++label )
+		{
+			if ( sizes[ label ] != components.sizes[ label ] ) return false;
+
+			// the label set of index k is { k - 1 }
+			if ( ! labeling.getMapping().labelsAtIndex( label ).contains( label - 1 ) ) return false;
+		}
+
+		return true;
+	}
+}
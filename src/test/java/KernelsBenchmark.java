@@ -0,0 +1,139 @@
+import de.embl.cba.morphometrics.Kernels;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the type specialised kernels with generic RealType loops,
+ * with images of several pixel types flowing through the same call sites,
+ * as they do in the registration.
+ */
+public class KernelsBenchmark
+{
+	public static final int SIZE = 200;
+	public static final int NUM_ROUNDS = 10;
+
+	public static void main( String... args )
+	{
+		final List< RandomAccessibleInterval< ? extends RealType< ? > > > images = createImages();
+		final RandomAccessibleInterval< BitType > mask = createMask();
+
+		for ( int round = 0; round < NUM_ROUNDS; ++round )
+		{
+			long genericTime = 0;
+			long kernelTime = 0;
+			double checksum = 0;
+
+			for ( RandomAccessibleInterval image : images )
+			{
+				long start = System.nanoTime();
+				final double genericMaximum = getMaximumValueGeneric( image );
+				final double genericAverage = computeAverageGeneric( image, mask );
+				genericTime += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				final double kernelMaximum = Kernels.getMaximumValue( image );
+				final double kernelAverage = Kernels.computeAverage( image, mask );
+				kernelTime += System.nanoTime() - start;
+
+				if ( genericMaximum != kernelMaximum || Math.abs( genericAverage - kernelAverage ) > 1.0E-6 * Math.abs( genericAverage ) )
+				{
+					System.out.println( "Mismatch for " + Views.iterable( image ).firstElement().getClass().getSimpleName() );
+				}
+
+				checksum += kernelMaximum + kernelAverage;
+			}
+
+			System.out.println( "Round " + round
+					+ ": generic " + genericTime / 1000000 + " ms"
+					+ ", kernels " + kernelTime / 1000000 + " ms"
+					+ ", speedup " + String.format( "%.1f", ( double ) genericTime / kernelTime )
+					+ " (checksum " + checksum + ")" );
+		}
+	}
+
+	private static List< RandomAccessibleInterval< ? extends RealType< ? > > > createImages()
+	{
+		final int numVoxels = SIZE * SIZE * SIZE;
+		final Random random = new Random( 42 );
+
+		final byte[] bytes = new byte[ numVoxels ];
+		final short[] shorts = new short[ numVoxels ];
+		final float[] floats = new float[ numVoxels ];
+		final double[] doubles = new double[ numVoxels ];
+
+		for ( int i = 0; i < numVoxels; ++i )
+		{
+			final int value = random.nextInt( 256 );
+			bytes[ i ] = ( byte ) value;
+			shorts[ i ] = ( short ) ( value * 200 );
+			floats[ i ] = value * 0.5F;
+			doubles[ i ] = value * 0.25;
+		}
+
+		final List< RandomAccessibleInterval< ? extends RealType< ? > > > images = new ArrayList<>();
+		images.add( ArrayImgs.unsignedBytes( bytes, SIZE, SIZE, SIZE ) );
+		images.add( ArrayImgs.unsignedShorts( shorts, SIZE, SIZE, SIZE ) );
+		images.add( ArrayImgs.floats( floats, SIZE, SIZE, SIZE ) );
+		images.add( ArrayImgs.doubles( doubles, SIZE, SIZE, SIZE ) );
+
+		return images;
+	}
+
+	private static RandomAccessibleInterval< BitType > createMask()
+	{
+		final RandomAccessibleInterval< BitType > mask = ArrayImgs.bits( SIZE, SIZE, SIZE );
+
+		final Cursor< BitType > cursor = Views.iterable( mask ).localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( ( cursor.getIntPosition( 0 ) + cursor.getIntPosition( 1 ) + cursor.getIntPosition( 2 ) ) % 3 == 0 ) cursor.get().set( true );
+		}
+
+		return mask;
+	}
+
+	private static < T extends RealType< T > > double getMaximumValueGeneric( RandomAccessibleInterval< T > rai )
+	{
+		double maxValue = Double.MIN_VALUE;
+
+		for ( T t : Views.iterable( rai ) )
+		{
+			final double value = t.getRealDouble();
+			if ( value > maxValue ) maxValue = value;
+		}
+
+		return maxValue;
+	}
+
+	private static < T extends RealType< T > > double computeAverageGeneric( RandomAccessibleInterval< T > rai, RandomAccessibleInterval< BitType > mask )
+	{
+		final Cursor< BitType > maskCursor = Views.flatIterable( mask ).cursor();
+		final Cursor< T > cursor = Views.flatIterable( rai ).cursor();
+
+		double sum = 0;
+		long n = 0;
+
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+
+			if ( maskCursor.next().get() )
+			{
+				sum += value;
+				++n;
+			}
+		}
+
+		return sum / n;
+	}
+}
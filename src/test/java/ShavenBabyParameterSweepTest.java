@@ -0,0 +1,27 @@
+import de.embl.cba.morphometrics.drosophila.shavenbaby.ShavenBabyParameterSweep;
+import de.embl.cba.morphometrics.drosophila.shavenbaby.ShavenBabyRegistrationSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class ShavenBabyParameterSweepTest
+{
+	public static void main( String... args ) throws IOException
+	{
+		final String directory = "/Users/tischer/Documents/justin-crocker-morphometrics-registration--data/";
+
+		final List< String > inputPaths = Arrays.asList(
+				directory + "E3NWT-02.czi",
+				directory + "E3NWT-07.czi" );
+
+		final ShavenBabyParameterSweep sweep = new ShavenBabyParameterSweep( new ShavenBabyRegistrationSettings() );
+		sweep.addParameter( "thresholdInUnitsOfBackgroundPeakHalfWidth", 4.0, 5.0, 6.0 );
+		sweep.addParameter( "rollAngleMinDistanceToCenter", 80.0, 105.0 );
+
+		final List< ShavenBabyParameterSweep.Row > rows = sweep.run( inputPaths );
+
+		ShavenBabyParameterSweep.writeCsv( new File( directory + "parameter-sweep.csv" ), rows );
+	}
+}
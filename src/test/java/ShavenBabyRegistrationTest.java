@@ -51,7 +51,7 @@ public class ShavenBabyRegistrationTest
 
 		final RandomAccessibleInterval< T > svb = ImageJFunctions.wrap( imagePlus );
 
-		ShavenBabyRegistration registration = new ShavenBabyRegistration( settings, imagej.op() );
+		ShavenBabyRegistration registration = new ShavenBabyRegistration( settings );
 
 		final AffineTransform3D registrationTransform = registration.computeRegistration( svb, Utils.getCalibration( imagePlus ) );
 